@@ -1,17 +1,13 @@
 import actors.ClientActor;
 import actors.ClientManager;
 import annotations.AllParkingState;
-import annotations.MidnightSyncRunnable;
-import annotations.RedisSubscriberRunnable;
-import annotations.WebsocketKeepAliveRunnable;
+import annotations.AntiEntropyRunnable;
 import com.google.inject.AbstractModule;
 import com.google.inject.TypeLiteral;
 import models.ParkingLot;
 import play.libs.akka.AkkaGuiceSupport;
 import providers.InitialParkingStateProvider;
-import services.KeepAlive;
-import services.MidnightSync;
-import services.RedisSubscriber;
+import services.AntiEntropy;
 
 import java.util.Map;
 
@@ -32,19 +28,13 @@ public class Module extends AbstractModule implements AkkaGuiceSupport {
 
     @Override
     public void configure() {
-        bindActor(ClientManager.class, "clientManagerActor");
+        bindActor(ClientManager.class, "clientManagerActor", props -> props.withMailbox("client-manager-mailbox"));
         bind(new TypeLiteral<Map<String, ParkingLot>>(){})
                 .annotatedWith(AllParkingState.class)
                 .toProvider(InitialParkingStateProvider.class);
         bind(Runnable.class)
-                .annotatedWith(RedisSubscriberRunnable.class)
-                .to(RedisSubscriber.class);
-        bind(Runnable.class)
-                .annotatedWith(MidnightSyncRunnable.class)
-                .to(MidnightSync.class);
-        bind(Runnable.class)
-                .annotatedWith(WebsocketKeepAliveRunnable.class)
-                .to(KeepAlive.class);
+                .annotatedWith(AntiEntropyRunnable.class)
+                .to(AntiEntropy.class);
         bindActorFactory(ClientActor.class, ClientActor.Factory.class);
     }
 
@@ -0,0 +1,64 @@
+package actors;
+
+import actors.messages.Broadcast;
+import actors.messages.ConnectionClosed;
+import actors.messages.RegisterClient;
+import actors.messages.UpdateSubscription;
+import akka.actor.ActorRef;
+import akka.actor.UntypedActor;
+import models.EncodedFrame;
+import models.SubscribedLots;
+import models.SubscriptionIndex;
+
+import java.util.Collection;
+
+/**
+ * Owns one slice of all connected clientActors
+ * <p>
+ * clientManager spreads clients across several of these, and sends every broadcast to all shards,
+ * so fan-out to thousands of websockets runs in parallel on as many cores as there are shards
+ * instead of in one loop inside clientManager
+ * <p>
+ * clients get every lot by default, but can subscribe to just some of them; the shard keeps them
+ * in a SubscriptionIndex, so a diff only costs as many sends as there are clients interested in that lot
+ */
+public class BroadcastShard extends UntypedActor {
+    private final Collection<String> knownLots;
+    private final SubscriptionIndex<ActorRef> clients = new SubscriptionIndex<>();
+
+    /**
+     * @param knownLots names of every lot in our config
+     */
+    public BroadcastShard(Collection<String> knownLots) {
+        this.knownLots = knownLots;
+    }
+
+    @Override
+    public void onReceive(Object message) throws Throwable {
+        if (message instanceof Broadcast) {
+            EncodedFrame frame = ((Broadcast) message).getFrame();
+            clients.forEachRecipient(frame, client -> client.tell(frame, getSelf()));
+        } else if (message instanceof RegisterClient) {
+            RegisterClient register = (RegisterClient) message;
+            clients.add(register.getClient());
+            for (Object frame : register.getInitialFrames()) {
+                register.getClient().tell(frame, getSelf());
+            }
+        } else if (message instanceof UpdateSubscription) {
+            //sent by clientManager on behalf of the clientActor, which is the sender
+            UpdateSubscription update = (UpdateSubscription) message;
+            SubscribedLots previous = clients.get(getSender());
+            if (previous != null) {
+                clients.update(getSender(), previous.apply(update.getSubscription(), knownLots));
+                if (update.getCatchUp() != null) {
+                    getSender().tell(update.getCatchUp(), getSelf());
+                }
+            }
+        } else if (message instanceof ConnectionClosed) {
+            //forwarded by clientManager, so the sender is still the closed clientActor
+            clients.remove(getSender());
+        } else {
+            unhandled(message);
+        }
+    }
+}
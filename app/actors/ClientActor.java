@@ -2,11 +2,15 @@ package actors;
 
 import actors.messages.ConnectionClosed;
 import actors.messages.ConnectionCreated;
+import actors.messages.UpdateSubscription;
 import akka.actor.Actor;
 import akka.actor.ActorRef;
 import akka.actor.UntypedActor;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.inject.assistedinject.Assisted;
+import models.EncodedFrame;
+import models.IncomingSubscription;
+import play.libs.Json;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -18,7 +22,9 @@ import javax.inject.Named;
  * upon creation, send a message to clientManager indicating a new connection occurred
  * (this occurs in the preStart() hook)
  * <p>
- * whenever clientactor gets sent a jsonNode message, forward it out to the client websocket
+ * whenever clientactor gets sent an already encoded frame, forward it out to the client websocket as is
+ * <p>
+ * whenever the client (un)subscribes lots, tell clientManager, so only updates for those lots reach us
  * <p>
  * whenever the websocket connection closes, this actor dies,
  * and should inform the clientmanager (occurs in the postStop() hook)
@@ -29,17 +35,22 @@ public class ClientActor extends UntypedActor {
 
     private final ActorRef clientManager;
 
+    //last seq the client saw before reconnecting, -1 if none
+    private final long since;
+
     @Inject
     public ClientActor(@Assisted ActorRef out,
+                       @Assisted long since,
                        @Named("clientManagerActor") ActorRef clientManager) {
         this.out = out;
+        this.since = since;
         this.clientManager = clientManager;
     }
 
     @Override
     public void preStart() throws Exception {
         super.preStart();
-        clientManager.tell(new ConnectionCreated(), getSelf());
+        clientManager.tell(new ConnectionCreated(since), getSelf());
     }
 
     @Override
@@ -50,14 +61,22 @@ public class ClientActor extends UntypedActor {
 
     @Override
     public void onReceive(Object message) throws Throwable {
-        if (message instanceof JsonNode) {
+        if (message instanceof EncodedFrame) {
             out.tell(message, getSelf());
+        } else if (message instanceof JsonNode) {
+            //the only thing clients send us is which lots they want updates for
+            try {
+                IncomingSubscription subscription = Json.fromJson((JsonNode) message, IncomingSubscription.class);
+                clientManager.tell(new UpdateSubscription(subscription), getSelf());
+            } catch (RuntimeException e) {
+                unhandled(message);
+            }
         } else {
             unhandled(message);
         }
     }
 
     public interface Factory {
-        Actor create(ActorRef out);
+        Actor create(ActorRef out, long since);
     }
 }
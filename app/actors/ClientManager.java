@@ -2,32 +2,69 @@ package actors;
 
 import actors.messages.*;
 import akka.actor.ActorRef;
+import akka.actor.Props;
 import akka.actor.UntypedActor;
-import annotations.AllParkingState;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import models.CustomConfiguration;
+import models.BatchDiffUpdate;
+import models.BinaryFrameEncoder;
 import models.DiffUpdate;
-import models.FullStateUpdate;
-import models.KeepAliveMessage;
-import models.ParkingLot;
-import play.libs.Json;
+import models.EncodedFrame;
+import models.IncomingSubscription;
+import models.LotRegistry;
+import models.UpdateStamp;
+import models.WebsocketMessage;
 import play.libs.akka.InjectedActorSupport;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+import services.FrameHub;
+import services.FullStateFrames;
+import services.MetricsRegistry;
+import services.ParkingStateStore;
 import services.RedisUpdater;
+import services.UpdateLatencies;
+import utils.LatencyTimer;
+import utils.SequencedRingBuffer;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
 /**
  * Actor that
  * 1. supervises all ClientActors (each of which holds a websocket connection to a client),
- * 2. holds the current state of all parking lots
+ * 2. is the single writer of the current state of all parking lots, kept in the parkingStateStore
  * 3. refreshes the state of the appropriate lot whenever redis publishes an update
  * <p>
  * ClientManager will forward json messages of parking state changes to all clientActors
+ * each message is encoded exactly once into an EncodedFrame, which is shared by every clientActor
+ * <p>
+ * the set of connected clients is split across several BroadcastShard children, so that
+ * the actual fan-out happens in parallel; state and redis access stay in this single actor,
+ * which keeps updates for a lot in order
+ * <p>
+ * if a coalescing window is configured, changed lots are only marked dirty, and once the window
+ * closes a single BatchDiffUpdate with the latest occupancy of each dirty lot is broadcast
+ * <p>
+ * every diff carries the state version as its seq, and recent diffs are kept in a ring buffer,
+ * so a reconnecting client that tells us its last seq only gets what it missed;
+ * it gets the full state if that seq is too old (or from another server / run)
+ * <p>
+ * redis reads never happen on this actor: they run on the redis dispatcher and the result is
+ * piped back as a message, so lot updates and connections only ever wait for each other
+ * <p>
+ * lots are tracked by their LotRegistry id, in bitsets, so a lot update allocates nothing
+ * but the diff that is broadcast
+ * <p>
+ * how long each message takes, and how many are waiting in the mailbox, are on /metrics
  * <p>
  * Jedis Subscriber should tell ClientManager whenever to update state
  */
@@ -35,94 +72,283 @@ import java.util.logging.Logger;
 public class ClientManager extends UntypedActor implements InjectedActorSupport {
 
     private Logger logger;
-    private Set<ActorRef> clients;
-    private Map<String, ParkingLot> allParkingLotState;
+    private List<ActorRef> shards;
+    //read by the connections gauge from other threads
+    private volatile int numConnections;
+    private ParkingStateStore stateStore;
+    private LotRegistry registry;
     private RedisUpdater redisUpdater;
     private ClientActor.Factory clientActorFactory;
-
+    private BinaryFrameEncoder binaryEncoder;
+    //encoded full state, sent to every new connection
+    private FullStateFrames fullStateFrames;
+    //connections attached to the broadcast hub instead of a ClientActor, if enabled
+    private FrameHub frameHub;
+    //null if lot changes are broadcast immediately
+    private FiniteDuration coalesceWindow;
+    //ids of lots that changed since the last flush, only used when coalescing
+    private BitSet dirtyLots;
+    //recently broadcast diff frames, keyed by seq, for resuming clients
+    private SequencedRingBuffer<EncodedFrame> diffHistory;
+    //ids of lots with a redis read in flight, and of lots notified again while that read was in flight
+    private BitSet lotsBeingRead;
+    private BitSet lotsToReread;
+    //per lot id, stamps of the oldest notification not broadcast yet (0 if none), to time updates
+    private UpdateLatencies updateLatencies;
+    private long[] pendingIngestMillis;
+    private long[] pendingReceivedNanos;
+    private LatencyTimer processingTimer;
 
     @Inject
     public ClientManager(Logger logger,
                          ClientActor.Factory clientActorFactory,
-                         @AllParkingState Map<String, ParkingLot> allParkingLotState,
-                         RedisUpdater redisUpdater) {
+                         ParkingStateStore stateStore,
+                         RedisUpdater redisUpdater,
+                         BinaryFrameEncoder binaryEncoder,
+                         FullStateFrames fullStateFrames,
+                         FrameHub frameHub,
+                         UpdateLatencies updateLatencies,
+                         MetricsRegistry metrics,
+                         CustomConfiguration configuration) {
         this.logger = logger;
         this.clientActorFactory = clientActorFactory;
-        this.clients = new HashSet<>();
-        this.allParkingLotState = allParkingLotState;
+        this.stateStore = stateStore;
+        this.registry = stateStore.getRegistry();
         this.redisUpdater = redisUpdater;
+        this.binaryEncoder = binaryEncoder;
+        this.fullStateFrames = fullStateFrames;
+        this.frameHub = frameHub;
+        this.shards = new ArrayList<>();
+        int numShards = configuration.getBroadcastShards();
+        List<String> knownLots = registry.getNames();
+        for (int i = 0; i < numShards; i++) {
+            shards.add(getContext().actorOf(Props.create(BroadcastShard.class, knownLots), "broadcastShard-" + i));
+        }
+        logger.info(String.format("Created %d broadcast shards", numShards));
+        long coalesceMillis = configuration.getCoalesceWindowMillis();
+        this.coalesceWindow = coalesceMillis > 0 ? Duration.create(coalesceMillis, TimeUnit.MILLISECONDS) : null;
+        this.dirtyLots = new BitSet(registry.size());
+        this.lotsBeingRead = new BitSet(registry.size());
+        this.lotsToReread = new BitSet(registry.size());
+        this.updateLatencies = updateLatencies;
+        this.pendingIngestMillis = new long[registry.size()];
+        this.pendingReceivedNanos = new long[registry.size()];
+        this.diffHistory = new SequencedRingBuffer<>(configuration.getDiffHistorySize(), stateStore.get().getVersion());
+        this.processingTimer = metrics.timer("client_manager_processing");
+        metrics.gauge("client_manager_mailbox_depth", ClientManagerMailbox::depth);
+        metrics.gauge("client_manager_connections", () -> numConnections);
     }
 
     @Override
     public void onReceive(Object message) throws Throwable {
+        long start = System.nanoTime();
+        try {
+            handle(message);
+        } finally {
+            processingTimer.recordSince(start);
+        }
+    }
+
+    private void handle(Object message) {
         if (message instanceof ClientActorCreate) {
             ClientActorCreate create = (ClientActorCreate) message;
-            ActorRef child = injectedChild(() -> clientActorFactory.create(create.getOut()), create.getId());
+            ActorRef child = injectedChild(() -> clientActorFactory.create(create.getOut(), create.getSince()), create.getId());
             sender().tell(child, getSelf());
         } else if (message instanceof ConnectionCreated) {
-            clients.add(getSender());
-            logger.info(String.format("Connection created, num connections: %d", clients.size()));
-            getSender().tell(Json.toJson(new FullStateUpdate(allParkingLotState)), getSelf());
+            numConnections++;
+            logger.info(String.format("Connection created, num connections: %d", numConnections));
+            shardFor(getSender()).tell(new RegisterClient(getSender(),
+                    initialFrames(((ConnectionCreated) message).getSince())), getSelf());
+        } else if (message instanceof UpdateSubscription) {
+            //built here, so it is ordered with the diffs this actor broadcasts
+            IncomingSubscription subscription = ((UpdateSubscription) message).getSubscription();
+            EncodedFrame catchUp = IncomingSubscription.SUBSCRIBE.equals(subscription.getHeader())
+                    ? fullStateFrames.latestOf(subscription.getLots())
+                    : null;
+            shardFor(getSender()).tell(new UpdateSubscription(subscription, catchUp), getSender());
         } else if (message instanceof ConnectionClosed) {
-            clients.remove(getSender());
-            logger.info(String.format("Connection closed, num connections: %d", clients.size()));
+            numConnections--;
+            logger.info(String.format("Connection closed, num connections: %d", numConnections));
+            shardFor(getSender()).forward(message, getContext());
         } else if (message instanceof RefreshState) {
-            //todo rethink how this is done or remove it entirely?
-            //the only real way for servers to be out of sync is network drop, but in that case,
-            //we could just restart the server anyways
-
-            //make a deep copy first
-            Map<String, ParkingLot> currentStateClone = new HashMap<>();
-            for (String lotName : allParkingLotState.keySet()) {
-                currentStateClone.put(lotName, new ParkingLot(allParkingLotState.get(lotName)));
-            }
+            //sent by redisSubscriber after every (re)subscription, and by antiEntropy with
+            //lots that have differed from redis for a while; both mean notifications were missed,
+            //they're counted in their own metrics, so only lots that actually changed are logged here
 
-            //call the updater, which modifies the passed in map
-            redisUpdater.updateParkingLots(allParkingLotState);
-
-            //compare with previous map check for any state difference
-            //if there was any difference in state, one of two things happened:
-            //  1. somehow our server missed a notification from redis (unlikely, but can happen w/temporary network outage?)
-            //  2. false alarm: where there is actually a message about this updated state,
-            //       but that message is later in the message queue (we haven't got to it yet)
-
-            // so... the hack to check if this falls under 1., and not 2. is to schedule this
-            // "RefreshState" update very infrequently and when we expect no changes
-            // in parking state, e.g. ~midnight once every 24 hours
-            for (String lotName : allParkingLotState.keySet()) {
-                int latestOccupancy = allParkingLotState.get(lotName).getOccupancy();
-                int earlierOccupancy = currentStateClone.get(lotName).getOccupancy();
+            //lots updated since the read started are skipped, their notification was newer than the read
+            //snapshots are immutable, so simply hold on to the current one
+            RefreshState refresh = (RefreshState) message;
+            ParkingStateStore.Snapshot earlierState = stateStore.get();
+            ParkingStateStore.Snapshot latestState =
+                    stateStore.setOccupancies(refresh.getLatestOccupancy(), refresh.getReadVersion());
+            if (latestState == earlierState) {
+                return;
+            }
+            for (int lotId = 0; lotId < registry.size(); lotId++) {
+                int latestOccupancy = latestState.getOccupancy(lotId);
+                int earlierOccupancy = earlierState.getOccupancy(lotId);
                 if (latestOccupancy != earlierOccupancy) {
-                    logger.warning("Found state discrepancy when doing full update!\n");
-                    logger.warning(String.format("previous: lot <%s>, occupancy <%d>", lotName, earlierOccupancy));
-                    logger.warning(String.format("later: lot <%s>, occupancy <%d>", lotName, latestOccupancy));
-
+                    logger.info(String.format("lot %s refreshed from %d to %d",
+                            registry.nameOf(lotId), earlierOccupancy, latestOccupancy));
                     //all clients must have been off by the same amount, let's update them
-                    DiffUpdate diffUpdate = new DiffUpdate(lotName, latestOccupancy);
-                    tellAllClients(diffUpdate);
+                    lotChanged(lotId);
                 }
             }
         } else if (message instanceof NewLotState) {
-            String lotName = ((NewLotState) message).getLot();
-            int oldOccupancy = allParkingLotState.get(lotName).getOccupancy();
-            int newOccupancy = redisUpdater.getParkingLotOccupancy(lotName);
-            allParkingLotState.get(lotName).setOccupancy(newOccupancy);
-            logger.info(String.format("lot %s occupancy updated from %d to: %d", lotName, oldOccupancy, newOccupancy));
-            DiffUpdate diffUpdate = new DiffUpdate(lotName, newOccupancy);
-            tellAllClients(diffUpdate);
-        } else if (message instanceof CurrentStateRequest) {
-            getSender().tell(Json.toJson(allParkingLotState), getSelf());
-        } else if (message instanceof KeepAliveMessage) {
-            tellAllClients(message);
+            //redisSubscriber already dropped notifications for lots that aren't in our config
+            NewLotState newLotState = (NewLotState) message;
+            if (pendingReceivedNanos[newLotState.getLotId()] == 0) {
+                pendingReceivedNanos[newLotState.getLotId()] = newLotState.getReceivedNanos();
+                pendingIngestMillis[newLotState.getLotId()] = newLotState.getIngestMillis();
+            }
+            //in script update mode the new value came with the notification, no need to read it back
+            if (newLotState.hasOccupancy()) {
+                applyOccupancy(newLotState.getLotId(), newLotState.getOccupancy());
+            } else {
+                readOccupancy(newLotState.getLotId());
+            }
+        } else if (message instanceof LotOccupancyRead) {
+            LotOccupancyRead read = (LotOccupancyRead) message;
+            int lotId = read.getLotId();
+            lotsBeingRead.clear(lotId);
+            if (read.isSucceeded()) {
+                applyOccupancy(lotId, read.getOccupancy());
+            } else {
+                logger.warning(String.format("Failed to read occupancy of lot %s: %s",
+                        registry.nameOf(lotId), read.getFailure()));
+            }
+            //lot was notified again while we were reading, what we just read may already be stale
+            if (lotsToReread.get(lotId)) {
+                lotsToReread.clear(lotId);
+                readOccupancy(lotId);
+            }
+        } else if (message instanceof FlushLotUpdates) {
+            ParkingStateStore.Snapshot state = stateStore.get();
+            Map<String, Integer> lots = new LinkedHashMap<>();
+            long oldestIngestMillis = 0;
+            for (int lotId = dirtyLots.nextSetBit(0); lotId >= 0; lotId = dirtyLots.nextSetBit(lotId + 1)) {
+                lots.put(registry.nameOf(lotId), state.getOccupancy(lotId));
+                long ingestMillis = takeStamp(lotId);
+                if (ingestMillis > 0 && (oldestIngestMillis == 0 || ingestMillis < oldestIngestMillis)) {
+                    oldestIngestMillis = ingestMillis;
+                }
+            }
+            dirtyLots.clear();
+            broadcastDiff(new BatchDiffUpdate(lots, state.getVersion()), state.getVersion(),
+                    new UpdateStamp(-1, oldestIngestMillis, System.nanoTime()));
         } else {
             unhandled(message);
         }
 
     }
 
-    private void tellAllClients(Object object) {
-        for (ActorRef client : clients) {
-            client.tell(Json.toJson(object), getSelf());
+    /**
+     * reads the lot's occupancy on the redis dispatcher, and pipes the result back as a LotOccupancyRead,
+     * so this actor never blocks on redis
+     * <p>
+     * at most one read per lot is in flight, so reads can't complete out of order and
+     * overwrite a newer occupancy with an older one; notifications arriving in the meantime
+     * collapse into a single re-read once the current one completes
+     */
+    private void readOccupancy(int lotId) {
+        if (lotsBeingRead.get(lotId)) {
+            lotsToReread.set(lotId);
+            return;
         }
+        lotsBeingRead.set(lotId);
+        ActorRef self = getSelf();
+        redisUpdater.getParkingLotOccupancyAsync(lotId).whenComplete((occupancy, failure) ->
+                self.tell(failure == null
+                        ? LotOccupancyRead.succeeded(lotId, occupancy)
+                        : LotOccupancyRead.failed(lotId, failure), ActorRef.noSender()));
+    }
+
+    private void applyOccupancy(int lotId, int newOccupancy) {
+        int oldOccupancy = stateStore.get().getOccupancy(lotId);
+        stateStore.setOccupancy(lotId, newOccupancy);
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine(String.format("lot %s occupancy updated from %d to: %d",
+                    registry.nameOf(lotId), oldOccupancy, newOccupancy));
+        }
+        lotChanged(lotId);
+    }
+
+    /**
+     * broadcasts the lot's latest occupancy right away, or if coalescing,
+     * marks it dirty and makes sure a flush is scheduled for the end of the current window
+     */
+    private void lotChanged(int lotId) {
+        if (coalesceWindow == null) {
+            ParkingStateStore.Snapshot state = stateStore.get();
+            long ingestMillis = takeStamp(lotId);
+            broadcastDiff(new DiffUpdate(registry.nameOf(lotId), state.getOccupancy(lotId), state.getVersion()),
+                    state.getVersion(), new UpdateStamp(lotId, ingestMillis, System.nanoTime()));
+            return;
+        }
+        if (dirtyLots.isEmpty()) {
+            getContext().system().scheduler().scheduleOnce(
+                    coalesceWindow, getSelf(), new FlushLotUpdates(), getContext().dispatcher(), ActorRef.noSender());
+        }
+        dirtyLots.set(lotId);
+    }
+
+    /**
+     * broadcasts the diff and remembers it for clients resuming from an earlier seq;
+     * replays aren't timed, their delivery latency would be how long the client was away
+     */
+    private void broadcastDiff(WebsocketMessage diff, long seq, UpdateStamp stamp) {
+        diffHistory.add(seq, tellAllClients(diff, stamp).withoutStamp());
+    }
+
+    /**
+     * records how long the lot took from its oldest pending notification to being broadcast
+     * @return ingest stamp of that notification, 0 if unknown
+     */
+    private long takeStamp(int lotId) {
+        long receivedNanos = pendingReceivedNanos[lotId];
+        if (receivedNanos == 0) {
+            return 0;
+        }
+        updateLatencies.recordSince(UpdateLatencies.Stage.APPLY, lotId, receivedNanos);
+        long ingestMillis = pendingIngestMillis[lotId];
+        pendingReceivedNanos[lotId] = 0;
+        pendingIngestMillis[lotId] = 0;
+        return ingestMillis;
+    }
+
+    /**
+     * encodes the message once, then has every shard send the same frame to its clients,
+     * and hands it to connections attached to the broadcast hub
+     * @return the encoded frame
+     */
+    private EncodedFrame tellAllClients(WebsocketMessage message, UpdateStamp stamp) {
+        EncodedFrame frame = EncodedFrame.of(message, binaryEncoder, stamp);
+        Broadcast broadcast = new Broadcast(frame);
+        for (ActorRef shard : shards) {
+            shard.tell(broadcast, getSelf());
+        }
+        frameHub.publish(frame);
+        return frame;
+    }
+
+    /**
+     * @param since last seq the connecting client saw, -1 if none
+     * @return only the diffs after since if we still have all of them, otherwise the full state
+     */
+    private List<EncodedFrame> initialFrames(long since) {
+        if (since >= 0 && since <= stateStore.get().getVersion()) {
+            List<EncodedFrame> missed = diffHistory.since(since);
+            if (missed != null) {
+                return missed;
+            }
+        }
+        return Collections.singletonList(fullStateFrames.get());
+    }
+
+    /**
+     * a client always maps to the same shard, so its close reaches the shard that registered it
+     */
+    private ActorRef shardFor(ActorRef client) {
+        return shards.get(Math.floorMod(client.hashCode(), shards.size()));
     }
 }
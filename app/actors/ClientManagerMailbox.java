@@ -0,0 +1,44 @@
+package actors;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import akka.dispatch.UnboundedMailbox;
+import com.typesafe.config.Config;
+import scala.Option;
+
+/**
+ * mailbox for clientManager: akka's plain unbounded mailbox, wrapped only to get hold of
+ * the queue it creates, for the mailbox depth metric
+ * <p>
+ * clientManager used to put keepalives behind everything else; now that they bypass it, every message
+ * it gets is equally urgent, so a priority queue would only add a lock to every send
+ */
+public class ClientManagerMailbox implements MailboxType, ProducesMessageQueue<UnboundedMailbox.MessageQueue> {
+    //akka creates mailboxes itself, out of reach of injection; there is a single clientManager, so a single queue
+    private static volatile MessageQueue queue;
+
+    private final UnboundedMailbox mailbox = new UnboundedMailbox();
+
+    public ClientManagerMailbox(ActorSystem.Settings settings, Config config) {
+    }
+
+    @Override
+    public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+        MessageQueue created = mailbox.create(owner, system);
+        queue = created;
+        return created;
+    }
+
+    /**
+     * counts the queue, which walks it; fine when metrics are scraped, not for anything hotter
+     *
+     * @return number of messages waiting for clientManager, 0 before it started
+     */
+    public static int depth() {
+        MessageQueue current = queue;
+        return current == null ? 0 : current.numberOfMessages();
+    }
+}
@@ -0,0 +1,19 @@
+package actors.messages;
+
+import models.EncodedFrame;
+
+/**
+ * sent by clientManager to every broadcastShard,
+ * each shard forwards the (already encoded) frame to all of its clients
+ */
+public class Broadcast {
+    private final EncodedFrame frame;
+
+    public Broadcast(EncodedFrame frame) {
+        this.frame = frame;
+    }
+
+    public EncodedFrame getFrame() {
+        return frame;
+    }
+}
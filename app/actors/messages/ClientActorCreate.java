@@ -8,10 +8,15 @@ import akka.actor.ActorRef;
 public class ClientActorCreate {
     private ActorRef out;
     private String id;
+    private long since;
 
-    public ClientActorCreate(String id, ActorRef out) {
+    /**
+     * @param since last seq the client saw before reconnecting, or -1 if it needs the full state
+     */
+    public ClientActorCreate(String id, ActorRef out, long since) {
         this.out = out;
         this.id = id;
+        this.since = since;
     }
 
     public ActorRef getOut() {
@@ -21,4 +26,8 @@ public class ClientActorCreate {
     public String getId() {
         return id;
     }
+
+    public long getSince() {
+        return since;
+    }
 }
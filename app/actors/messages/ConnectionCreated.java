@@ -2,7 +2,16 @@ package actors.messages;
 
 /**
  *  message sent when a clientactor is started, to the clientmanager
+ *  since is the last seq the client saw before reconnecting, or -1 for a fresh connection
  */
 public class ConnectionCreated {
+    private final long since;
 
+    public ConnectionCreated(long since) {
+        this.since = since;
+    }
+
+    public long getSince() {
+        return since;
+    }
 }
@@ -1,7 +0,0 @@
-package actors.messages;
-
-/**
- * message sent by parkingcontroller to clientmanager asking for full state
- */
-public class CurrentStateRequest {
-}
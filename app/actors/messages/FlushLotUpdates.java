@@ -0,0 +1,8 @@
+package actors.messages;
+
+/**
+ * sent by clientManager to itself when a coalescing window closes,
+ * all lots that changed during the window are then broadcast in one BatchDiffUpdate
+ */
+public class FlushLotUpdates {
+}
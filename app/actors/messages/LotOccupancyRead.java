@@ -0,0 +1,44 @@
+package actors.messages;
+
+/**
+ * result of reading a lot's occupancy from redis off the clientManager thread,
+ * piped back to ClientManager once the read completes
+ * <p>
+ * lotId is the id of the lot in the LotRegistry,
+ * failure is non null if the read failed, in which case occupancy is meaningless
+ */
+public class LotOccupancyRead {
+    private int lotId;
+    private int occupancy;
+    private Throwable failure;
+
+    private LotOccupancyRead(int lotId, int occupancy, Throwable failure) {
+        this.lotId = lotId;
+        this.occupancy = occupancy;
+        this.failure = failure;
+    }
+
+    public static LotOccupancyRead succeeded(int lotId, int occupancy) {
+        return new LotOccupancyRead(lotId, occupancy, null);
+    }
+
+    public static LotOccupancyRead failed(int lotId, Throwable failure) {
+        return new LotOccupancyRead(lotId, 0, failure);
+    }
+
+    public int getLotId() {
+        return lotId;
+    }
+
+    public int getOccupancy() {
+        return occupancy;
+    }
+
+    public boolean isSucceeded() {
+        return failure == null;
+    }
+
+    public Throwable getFailure() {
+        return failure;
+    }
+}
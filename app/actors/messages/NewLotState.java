@@ -1,17 +1,51 @@
 package actors.messages;
 
 /**
- * message saying that parking lot with name "lot" has been updated
+ * message saying that the parking lot with id "lotId" (see LotRegistry) has been updated
  * sent by redisSubscriber to ClientManager
+ * <p>
+ * in script update mode the new occupancy was published along with the notification,
+ * otherwise it is unknown and has to be read from redis
+ * <p>
+ * receivedNanos is when redisSubscriber got the notification, ingestMillis the wall clock
+ * stamp of the sensor's POST (0 if unknown), both only used to time the update
  */
 public class NewLotState {
-    private String lot;
+    private static final int UNKNOWN_OCCUPANCY = -1;
 
-    public NewLotState(String lot) {
-        this.lot = lot;
+    private int lotId;
+    private int occupancy;
+    private long ingestMillis;
+    private long receivedNanos;
+
+    public NewLotState(int lotId, long receivedNanos) {
+        this(lotId, UNKNOWN_OCCUPANCY, 0, receivedNanos);
+    }
+
+    public NewLotState(int lotId, int occupancy, long ingestMillis, long receivedNanos) {
+        this.lotId = lotId;
+        this.occupancy = occupancy;
+        this.ingestMillis = ingestMillis;
+        this.receivedNanos = receivedNanos;
+    }
+
+    public int getLotId() {
+        return lotId;
+    }
+
+    public boolean hasOccupancy() {
+        return occupancy != UNKNOWN_OCCUPANCY;
+    }
+
+    public int getOccupancy() {
+        return occupancy;
+    }
+
+    public long getIngestMillis() {
+        return ingestMillis;
     }
 
-    public String getLot() {
-        return lot;
+    public long getReceivedNanos() {
+        return receivedNanos;
     }
 }
@@ -1,9 +1,36 @@
 package actors.messages;
 
+import java.util.Map;
+
 /**
  * hacky message used by a once per day background thread to fully sync state
  * may not be needed
  * we'll see when we examine logs from running this in production
+ * <p>
+ * carries the occupancy of all lots as freshly read from redis by the sync thread,
+ * so clientManager itself doesn't block on redis; by the time it's handled, clientManager may
+ * have applied newer notifications, so it also carries the state version the read started from
  */
 public class RefreshState {
+    private final Map<String, Integer> latestOccupancy;
+    private final long readVersion;
+
+    /**
+     * @param readVersion version of our state store snapshot taken right before reading from redis
+     */
+    public RefreshState(Map<String, Integer> latestOccupancy, long readVersion) {
+        this.latestOccupancy = latestOccupancy;
+        this.readVersion = readVersion;
+    }
+
+    public Map<String, Integer> getLatestOccupancy() {
+        return latestOccupancy;
+    }
+
+    /**
+     * @return lots that changed after this version have a newer occupancy than the one read
+     */
+    public long getReadVersion() {
+        return readVersion;
+    }
 }
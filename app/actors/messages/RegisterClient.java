@@ -0,0 +1,29 @@
+package actors.messages;
+
+import akka.actor.ActorRef;
+import models.EncodedFrame;
+
+import java.util.List;
+
+/**
+ * sent by clientManager to a broadcastShard when a new clientActor connects
+ * the shard takes ownership of the client, and sends it the initial frames:
+ * either the full state, or the diffs it missed while reconnecting
+ */
+public class RegisterClient {
+    private final ActorRef client;
+    private final List<EncodedFrame> initialFrames;
+
+    public RegisterClient(ActorRef client, List<EncodedFrame> initialFrames) {
+        this.client = client;
+        this.initialFrames = initialFrames;
+    }
+
+    public ActorRef getClient() {
+        return client;
+    }
+
+    public List<EncodedFrame> getInitialFrames() {
+        return initialFrames;
+    }
+}
@@ -0,0 +1,34 @@
+package actors.messages;
+
+import models.EncodedFrame;
+import models.IncomingSubscription;
+
+/**
+ * sent by a clientActor when its client (un)subscribes lots,
+ * clientManager forwards it to the shard holding that client, along with the latest
+ * occupancy of the lots subscribed to, since the client skipped their updates until now
+ */
+public class UpdateSubscription {
+    private final IncomingSubscription subscription;
+    private final EncodedFrame catchUp;
+
+    public UpdateSubscription(IncomingSubscription subscription) {
+        this(subscription, null);
+    }
+
+    public UpdateSubscription(IncomingSubscription subscription, EncodedFrame catchUp) {
+        this.subscription = subscription;
+        this.catchUp = catchUp;
+    }
+
+    public IncomingSubscription getSubscription() {
+        return subscription;
+    }
+
+    /**
+     * @return frame to send the client once subscribed, null if none
+     */
+    public EncodedFrame getCatchUp() {
+        return catchUp;
+    }
+}
@@ -13,5 +13,5 @@ import static java.lang.annotation.ElementType.METHOD;
  * https://github.com/google/guice/wiki/BindingAnnotations
  */
 @BindingAnnotation @Target({ FIELD, PARAMETER, METHOD }) @Retention(RUNTIME)
-public @interface MidnightSyncRunnable{
+public @interface AntiEntropyRunnable{
 }
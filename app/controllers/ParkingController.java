@@ -1,37 +1,63 @@
 package controllers;
 
 import actors.messages.ClientActorCreate;
-import actors.messages.CurrentStateRequest;
 import akka.NotUsed;
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
 import akka.actor.Status;
 import akka.japi.Pair;
+import akka.japi.function.Function;
 import akka.stream.Materializer;
 import akka.stream.OverflowStrategy;
 import akka.stream.javadsl.*;
-import annotations.MidnightSyncRunnable;
-import annotations.RedisSubscriberRunnable;
-import annotations.WebsocketKeepAliveRunnable;
+import annotations.AntiEntropyRunnable;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
+import models.CustomConfiguration;
+import models.EncodedFrame;
 import models.IncomingLotUpdate;
+import models.IncomingSubscription;
+import models.LotUpdateResult;
+import models.SubscribedLots;
+import models.WireFormat;
 import org.reactivestreams.Publisher;
+import play.http.websocket.Message;
+import play.libs.EventSource;
 import play.libs.F;
 import play.libs.Json;
 import play.mvc.*;
 import scala.compat.java8.FutureConverters;
 import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+import services.FrameHub;
+import services.FullStateFrames;
+import services.IngestExecutor;
+import services.MetricsRegistry;
+import services.OutboundBuffers;
+import services.ParkingStateStore;
+import services.RedisSubscriber;
 import services.RedisUpdater;
+import services.StatusSnapshot;
+import services.UpdateLatencies;
+import services.WriteBehindIngest;
 import utils.ExceptionUtils;
-
-import java.time.LocalDate;
-import java.time.ZoneId;
-import java.time.ZonedDateTime;
+import utils.HttpHeaderUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 import static akka.pattern.Patterns.ask;
@@ -39,9 +65,9 @@ import static akka.pattern.Patterns.ask;
 /**
  * This is the main class where all of our endpoints are defined
  * Also servers as instantiation point of 2 background services:
- *  1. redis subscriber thread
- *  2. the sync background thread in rare case of network drops
- *  to redis (which should never happen), we will monitor if this ever happens in production
+ *  1. redis subscriber thread (its own thread, reconnects by itself)
+ *  2. the anti-entropy check, in the rare case a redis notification got lost
+ *  (which should never happen), its metrics tell us if this ever happens in production
  */
 @Singleton
 public class ParkingController extends Controller {
@@ -51,6 +77,19 @@ public class ParkingController extends Controller {
     private final ActorRef clientManager;
     private final RedisUpdater redisUpdater;
     private final Materializer materializer;
+    private final MetricsRegistry metrics;
+    private final StatusSnapshot statusSnapshot;
+    private final ParkingStateStore stateStore;
+    private final RedisSubscriber redisSubscriber;
+    private final OutboundBuffers outboundBuffers;
+    private final FrameHub frameHub;
+    private final FullStateFrames fullStateFrames;
+    private final IngestExecutor ingestExecutor;
+    private final WriteBehindIngest writeBehind;
+    private final UpdateLatencies updateLatencies;
+    private final String ingestRetryAfter;
+    private final LongAdder ingestRequests;
+    private final LongAdder ingestMalformed;
 
 
     @Inject
@@ -58,154 +97,386 @@ public class ParkingController extends Controller {
                              ActorSystem actorSystem,
                              @Named("clientManagerActor") ActorRef clientManager,
                              RedisUpdater redisUpdater,
-                             @RedisSubscriberRunnable Runnable redisSubscriber,
-                             @MidnightSyncRunnable Runnable midnightSync,
-                             @WebsocketKeepAliveRunnable Runnable keepalive,
-                             Materializer materializer) {
+                             RedisSubscriber redisSubscriber,
+                             @AntiEntropyRunnable Runnable antiEntropy,
+                             Materializer materializer,
+                             MetricsRegistry metrics,
+                             StatusSnapshot statusSnapshot,
+                             ParkingStateStore stateStore,
+                             CustomConfiguration configuration,
+                             OutboundBuffers outboundBuffers,
+                             FrameHub frameHub,
+                             FullStateFrames fullStateFrames,
+                             IngestExecutor ingestExecutor,
+                             WriteBehindIngest writeBehind,
+                             UpdateLatencies updateLatencies) {
 
         this.logger = logger;
         this.clientManager = clientManager;
         this.actorSystem = actorSystem;
         this.redisUpdater = redisUpdater;
         this.materializer = materializer;
-
-        //schedule background thread to subscribe to Redis notifications
-        this.actorSystem.scheduler().scheduleOnce(
-                Duration.create(1, TimeUnit.NANOSECONDS),
-                redisSubscriber,
-                actorSystem.dispatcher()
-        );
-
-        //schedule keep alive thread to keep all websocket connections alive
-        this.actorSystem.scheduler().scheduleOnce(
-                Duration.create(1, TimeUnit.NANOSECONDS),
-                keepalive,
-                actorSystem.dispatcher()
-        );
-
-        //once a day, every midnight, perform a sync of redis state
-        //just in case there was a missed notification day
+        this.metrics = metrics;
+        this.statusSnapshot = statusSnapshot;
+        this.stateStore = stateStore;
+        this.redisSubscriber = redisSubscriber;
+        this.outboundBuffers = outboundBuffers;
+        this.frameHub = frameHub;
+        this.fullStateFrames = fullStateFrames;
+        this.ingestExecutor = ingestExecutor;
+        this.writeBehind = writeBehind;
+        this.updateLatencies = updateLatencies;
+        this.ingestRetryAfter = String.valueOf(configuration.getIngestRetryAfterSeconds());
+        //rejects are counted where they happen, by the ingest executor and write-behind
+        this.ingestRequests = metrics.counter("ingest_requests_total");
+        this.ingestMalformed = metrics.counter("ingest_malformed_total");
+
+        //subscribe to Redis notifications on the subscriber's own thread
+        redisSubscriber.start();
+
+        //every few seconds, check our state against redis, just in case a notification got lost
+        //it reads redis, so it runs on the redis dispatcher
+        FiniteDuration antiEntropyInterval = Duration.create(configuration.getAntiEntropyIntervalMillis(), TimeUnit.MILLISECONDS);
         this.actorSystem.scheduler().schedule(
-                Duration.create(timeTilMidnight(), TimeUnit.MILLISECONDS),
-                Duration.create(24, TimeUnit.HOURS),
-                midnightSync,
-                actorSystem.dispatcher()
+                antiEntropyInterval,
+                antiEntropyInterval,
+                antiEntropy,
+                actorSystem.dispatchers().lookup("redis-dispatcher")
         );
 
     }
 
     /**
      * health check endpoint, should be up if server is up
-     * @return 200 ok
+     * and actually receiving lot updates from redis
+     * @return 200 ok, 503 if the redis subscription is down
      */
     public Result health() {
+        if (!redisSubscriber.isConnected()) {
+            return status(SERVICE_UNAVAILABLE, "Not subscribed to redis, lot state may be stale");
+        }
         return ok("Server is up!");
     }
 
 
     /**
      * raspberry pi update endpoint
-     * get json from payload + send update to Redis
-     * @return ok if json was parsed correctly + Redis update successful
+     * get json from payload + send update to Redis, on the ingest executor
+     * (or in write-behind mode, add it to this lot's pending diff, written with the next flush)
+     * @return ok if json was parsed correctly + Redis update successful (or queued),
+     * 503 with Retry-After if too many updates are already waiting for redis
      */
-    public Result update() {
+    public CompletionStage<Result> update() {
+        //stamped on arrival, the stamp travels with the update (see UpdateLatencies)
+        long ingestMillis = System.currentTimeMillis();
+        long ingestNanos = System.nanoTime();
+        ingestRequests.increment();
         JsonNode json = request().body().asJson();
         if (json == null) {
-            return badRequest("Expecting Json data");
-        } else {
-            try {
-                IncomingLotUpdate lotChange = Json.fromJson(json, IncomingLotUpdate.class);
-                this.redisUpdater.updateParkingLotOccupancy(lotChange.getLot(), lotChange.getDiff());
-                logger.info(String.format("updated lot %s by %d", lotChange.getLot(), lotChange.getDiff()));
-                return ok();
-            } catch (RuntimeException e) {
+            ingestMalformed.increment();
+            return CompletableFuture.completedFuture(badRequest("Expecting Json data"));
+        }
+        IncomingLotUpdate lotChange;
+        try {
+            lotChange = Json.fromJson(json, IncomingLotUpdate.class);
+        } catch (RuntimeException e) {
+            ingestMalformed.increment();
+            logger.warning(ExceptionUtils.getStackTrace(e));
+            return CompletableFuture.completedFuture(internalServerError());
+        }
+        if (writeBehind.isEnabled()) {
+            return CompletableFuture.completedFuture(writeBehind.add(lotChange.getLot(), lotChange.getDiff())
+                    ? ok()
+                    : retryLater());
+        }
+        return ingest(() -> {
+            this.redisUpdater.updateParkingLotOccupancy(lotChange.getLot(), lotChange.getDiff(), ingestMillis);
+            updateLatencies.recordSince(UpdateLatencies.Stage.INGEST,
+                    stateStore.getRegistry().idOf(lotChange.getLot()), ingestNanos);
+            logger.info(String.format("updated lot %s by %d", lotChange.getLot(), lotChange.getDiff()));
+            return ok();
+        });
+    }
+
+    /**
+     * raspberry pi batch update endpoint, e.g. for flushing a backlog after being offline
+     * takes a json array of updates, merges the diffs per lot and sends them all to redis in one round trip
+     * @return ok with the result of every entry, in the order they were posted,
+     * 503 with Retry-After if too many updates are already waiting for redis
+     */
+    public CompletionStage<Result> batchUpdate() {
+        long ingestMillis = System.currentTimeMillis();
+        ingestRequests.increment();
+        JsonNode json = request().body().asJson();
+        if (json == null || !json.isArray()) {
+            ingestMalformed.increment();
+            return CompletableFuture.completedFuture(badRequest("Expecting Json array"));
+        }
+        IncomingLotUpdate[] lotChanges;
+        try {
+            lotChanges = Json.fromJson(json, IncomingLotUpdate[].class);
+        } catch (RuntimeException e) {
+            ingestMalformed.increment();
+            logger.warning(ExceptionUtils.getStackTrace(e));
+            return CompletableFuture.completedFuture(internalServerError());
+        }
+        return ingest(() -> {
+            Map<String, Integer> increments = new LinkedHashMap<>();
+            for (IncomingLotUpdate lotChange : lotChanges) {
+                if (redisUpdater.isValidParkingLot(lotChange.getLot())) {
+                    increments.merge(lotChange.getLot(), lotChange.getDiff(), Integer::sum);
+                }
+            }
+
+            Map<String, Integer> occupancies = increments.isEmpty()
+                    ? Collections.emptyMap()
+                    : redisUpdater.updateParkingLotOccupancies(increments, ingestMillis);
+
+            List<LotUpdateResult> results = new ArrayList<>();
+            for (IncomingLotUpdate lotChange : lotChanges) {
+                Integer occupancy = occupancies.get(lotChange.getLot());
+                if (occupancy == null) {
+                    logger.warning(String.format("Request for update on nonexistent parking lot %s:", lotChange.getLot()));
+                    results.add(new LotUpdateResult(lotChange.getLot(), lotChange.getDiff(), LotUpdateResult.UNKNOWN_LOT, null));
+                } else {
+                    results.add(new LotUpdateResult(lotChange.getLot(), lotChange.getDiff(), LotUpdateResult.OK, occupancy));
+                }
+            }
+            logger.info(String.format("batch updated %d lots from %d entries", increments.size(), lotChanges.length));
+            return ok(Json.toJson(results));
+        });
+    }
+
+    /**
+     * runs the redis part of an update request on the ingest executor, off play's request threads
+     * <p>
+     * the work must not touch the request context (request(), etc), it runs on another thread
+     * @return the work's result, 500 if it failed, 503 right away if the ingest queue is full
+     */
+    private CompletionStage<Result> ingest(Supplier<Result> redisWork) {
+        try {
+            return ingestExecutor.supply(redisWork).exceptionally(e -> {
                 logger.warning(ExceptionUtils.getStackTrace(e));
                 return internalServerError();
-            }
+            });
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.completedFuture(retryLater());
+        }
+    }
+
+    private Result retryLater() {
+        return status(SERVICE_UNAVAILABLE, "Too many pending updates, retry later")
+                .withHeader(RETRY_AFTER, ingestRetryAfter);
+    }
+
+    /**
+     * current value of all counters, gauges, timers and histograms of this server (and its jvm)
+     * @return prometheus text format, or with ?format=json a json object of metric name to value
+     */
+    public Result metrics() {
+        if ("json".equals(request().getQueryString("format"))) {
+            return ok(Json.toJson(metrics.snapshot()));
         }
+        return ok(metrics.prometheusText()).as(MetricsRegistry.PROMETHEUS_CONTENT_TYPE);
+    }
+
+    /**
+     * how long lot updates took from the sensor's POST to client connections, per stage and lot
+     * @return json object of stage to percentiles over all lots ("all") and per lot ("lots")
+     */
+    public Result latency() {
+        return ok(Json.toJson(updateLatencies.snapshot()));
     }
 
     /**
      * gets latest known state of all parking lots back in json
+     * served straight from the pre-rendered snapshot, with a version based etag,
+     * so polling clients sending If-None-Match get a 304 while nothing changed
      * @return
      */
-    public CompletionStage<Result> status() {
-        //taken straight from documentation
-        //https://www.playframework.com/documentation/2.5.x/JavaAkka#Creating-and-using-actors
-        return FutureConverters.toJava(ask(clientManager, new CurrentStateRequest(), 1000)
-        ).thenApply(response -> ok((JsonNode) response));
+    public Result status() {
+        StatusSnapshot.Rendered snapshot = statusSnapshot.get();
+        if (HttpHeaderUtils.ifNoneMatchMatches(request().getHeader(IF_NONE_MATCH), snapshot.getEtag())) {
+            return status(NOT_MODIFIED)
+                    .withHeader(ETAG, snapshot.getEtag())
+                    .withHeader(VARY, ACCEPT_ENCODING);
+        }
+        Result result;
+        if (HttpHeaderUtils.acceptsEncoding(request().getHeader(ACCEPT_ENCODING), "gzip")) {
+            result = ok(snapshot.getGzippedJson()).withHeader(CONTENT_ENCODING, "gzip");
+        } else {
+            result = ok(snapshot.getJson());
+        }
+        return result.as("application/json")
+                .withHeader(ETAG, snapshot.getEtag())
+                .withHeader(VARY, ACCEPT_ENCODING);
+    }
+
+    /**
+     * server-sent events alternative to the websocket, for clients behind proxies that break websockets
+     * sends the same json messages as /wlots: the full state first, then diffs and keepalives,
+     * each with id "epoch-seq", so a reconnecting browser sending Last-Event-ID only gets the lots
+     * that changed since; ?lots=A,F1 limits updates to those lots
+     * @return never ending text/event-stream response
+     */
+    public Result stream() {
+        // browsers can't send anything over an event stream, so the lots to get are a query param
+        final String lots = request().getQueryString("lots");
+        final SubscribedLots subscribed = lots == null
+                ? SubscribedLots.ALL
+                : SubscribedLots.of(Arrays.asList(lots.split(",")), stateStore.getRegistry().getNames());
+        final Source<EventSource.Event, NotUsed> events = frameHub.subscribe(resumeSinceEventId(request().getHeader("Last-Event-ID")))
+                .filter(subscribed::wants)
+                .via(outboundBuffers.perConnection())
+                .map(this::toEvent);
+        return ok().chunked(events.via(EventSource.flow()))
+                .as(Http.MimeTypes.EVENT_STREAM)
+                .withHeader(CACHE_CONTROL, "no-cache")
+                // stop nginx style proxies from buffering the stream
+                .withHeader("X-Accel-Buffering", "no");
     }
 
+    private EventSource.Event toEvent(EncodedFrame frame) {
+        EventSource.Event event = EventSource.Event.event(frame.getText());
+        // keepalives carry no seq, the browser keeps the last id it saw
+        if (frame.getSeq() >= 0) {
+            event = event.withId(stateStore.getEpoch() + "-" + frame.getSeq());
+        }
+        return event;
+    }
+
+    /**
+     * @param lastEventId id of the last event a reconnecting browser got, "epoch-seq", null if none
+     * @return seq to resume after, or -1 to start with the full state
+     */
+    private long resumeSinceEventId(String lastEventId) {
+        if (lastEventId == null) {
+            return -1;
+        }
+        int separator = lastEventId.lastIndexOf('-');
+        if (separator < 0 || !stateStore.getEpoch().equals(lastEventId.substring(0, separator))) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(lastEventId.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 
     /**
      * websocket-actor is very confusing and not well documented
      * all of the code below this line was taken from:
      * https://github.com/playframework/play-websocket-java
      *
-     * essentially, create a json websocket, tied to a new ClientActor
+     * essentially, create a websocket tied to a new ClientActor
+     * incoming messages are parsed as json, outgoing messages are frames that
+     * were already encoded once by the clientManager, so they are written out as is
+     *
+     * clients connecting with ?format=binary get compact binary frames instead of json,
+     * and with ?format=binary&deflate=true those frames are also compressed where it helps
+     *
+     * with broadcast.mode = "hub" there's no ClientActor, see createHubWebSocketFlow
      * @return
      */
     public WebSocket ws() {
-        return WebSocket.Json.acceptOrResult(request -> {
-            final CompletionStage<Flow<JsonNode, JsonNode, NotUsed>> future = wsFutureFlow(request);
-            final CompletionStage<F.Either<Result, Flow<JsonNode, JsonNode, ?>>> stage = future.thenApplyAsync(F.Either::Right);
-            return stage.exceptionally(this::logException);
-        });
+        return new WebSocket() {
+            @Override
+            public CompletionStage<F.Either<Result, Flow<Message, Message, ?>>> apply(Http.RequestHeader request) {
+                if (frameHub.servesWebSockets()) {
+                    final F.Either<Result, Flow<Message, Message, ?>> hubFlow =
+                            F.Either.Right(createHubWebSocketFlow(resumeSince(request), wireFormat(request)));
+                    return CompletableFuture.completedFuture(hubFlow);
+                }
+                final CompletionStage<Flow<Message, Message, NotUsed>> future = wsFutureFlow(request);
+                final CompletionStage<F.Either<Result, Flow<Message, Message, ?>>> stage = future.thenApplyAsync(F.Either::Right);
+                return stage.exceptionally(ParkingController.this::logException);
+            }
+        };
     }
 
-    public CompletionStage<Flow<JsonNode, JsonNode, NotUsed>> wsFutureFlow(Http.RequestHeader request) {
+    public CompletionStage<Flow<Message, Message, NotUsed>> wsFutureFlow(Http.RequestHeader request) {
         // create an actor ref source and associated publisher for sink
-        final Pair<ActorRef, Publisher<JsonNode>> pair = createWebSocketConnections();
+        final Pair<ActorRef, Publisher<EncodedFrame>> pair = createWebSocketConnections();
         ActorRef webSocketOut = pair.first();
-        Publisher<JsonNode> webSocketIn = pair.second();
+        Publisher<EncodedFrame> webSocketIn = pair.second();
 
         String id = String.valueOf(request._underlyingHeader().id());
         // Create a user actor off the request id and attach it to the source
-        final CompletionStage<ActorRef> clientActorFuture = createClientActor(id, webSocketOut);
+        final CompletionStage<ActorRef> clientActorFuture = createClientActor(id, webSocketOut, resumeSince(request));
 
         // Once we have an actor available, create a flow...
-        final CompletionStage<Flow<JsonNode, JsonNode, NotUsed>> stage = clientActorFuture
-                .thenApplyAsync(clientActor -> createWebSocketFlow(webSocketIn, clientActor));
+        final WireFormat format = wireFormat(request);
+        final CompletionStage<Flow<Message, Message, NotUsed>> stage = clientActorFuture
+                .thenApplyAsync(clientActor -> createWebSocketFlow(webSocketIn, clientActor, format));
 
         return stage;
     }
 
-    public CompletionStage<ActorRef> createClientActor(String id, ActorRef webSocketOut) {
+    public CompletionStage<ActorRef> createClientActor(String id, ActorRef webSocketOut, long since) {
         // Use guice assisted injection to instantiate and configure the child actor.
         long timeoutMillis = 100L;
         return FutureConverters.toJava(
-                ask(clientManager, new ClientActorCreate(id, webSocketOut), timeoutMillis)
+                ask(clientManager, new ClientActorCreate(id, webSocketOut, since), timeoutMillis)
         ).thenApply(stageObj -> (ActorRef) stageObj);
     }
 
+    /**
+     * a reconnecting client passes the seq of the last update it got, and the epoch of the full state it got
+     * seqs from another server (or an earlier run of this one) mean nothing here, so those get the full state
+     * @return seq to resume after, or -1 to start with the full state
+     */
+    private long resumeSince(Http.RequestHeader request) {
+        String since = request.getQueryString("since");
+        if (since == null || !stateStore.getEpoch().equals(request.getQueryString("epoch"))) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(since);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
 
-    public Pair<ActorRef, Publisher<JsonNode>> createWebSocketConnections() {
+    public Pair<ActorRef, Publisher<EncodedFrame>> createWebSocketConnections() {
         // Creates a source to be materialized as an actor reference.
 
         // Creating a source can be done through various means, but here we want
         // the source exposed as an actor so we can send it messages from other
         // actors.
-        final Source<JsonNode, ActorRef> source = Source.actorRef(10, OverflowStrategy.dropTail());
+        // conflation happens downstream (see outboundBuffers), which keeps pulling, so this buffer only
+        // absorbs scheduling hiccups; should it still overflow, fail the connection rather than
+        // silently drop a diff, the client then reconnects and resumes
+        final Source<EncodedFrame, ActorRef> source = Source.actorRef(64, OverflowStrategy.fail());
 
         // Creates a sink to be materialized as a publisher.  Fanout is false as we only want
         // a single subscriber here.
-        final Sink<JsonNode, Publisher<JsonNode>> sink = Sink.asPublisher(AsPublisher.WITHOUT_FANOUT);
+        final Sink<EncodedFrame, Publisher<EncodedFrame>> sink = Sink.asPublisher(AsPublisher.WITHOUT_FANOUT);
 
         // Connect the source and sink into a flow, telling it to keep the materialized values,
         // and then kicks the flow into existence.
-        final Pair<ActorRef, Publisher<JsonNode>> pair = source.toMat(sink, Keep.both()).run(materializer);
+        final Pair<ActorRef, Publisher<EncodedFrame>> pair = source.toMat(sink, Keep.both()).run(materializer);
         return pair;
     }
 
-    public Flow<JsonNode, JsonNode, NotUsed> createWebSocketFlow(Publisher<JsonNode> webSocketIn, ActorRef clientActor) {
+    public Flow<Message, Message, NotUsed> createWebSocketFlow(Publisher<EncodedFrame> webSocketIn,
+                                                               ActorRef clientActor,
+                                                               WireFormat format) {
         // http://doc.akka.io/docs/akka/current/scala/stream/stream-flows-and-basics.html#stream-materialization
         // http://doc.akka.io/docs/akka/current/scala/stream/stream-integrations.html#integrating-with-actors
 
         // source is what comes in: browser ws events -> play -> publisher -> clientActor
         // sink is what comes out:  clientActor -> websocketOut -> play -> browser ws events
-        final Sink<JsonNode, NotUsed> sink = Sink.actorRef(clientActor, new Status.Success("success"));
-        final Source<JsonNode, NotUsed> source = Source.fromPublisher(webSocketIn);
-        final Flow<JsonNode, JsonNode, NotUsed> flow = Flow.fromSinkAndSource(sink, source);
+        final Sink<Message, NotUsed> sink = Flow.<Message>create()
+                .mapConcat(ParkingController::parseIncomingMessage)
+                .to(Sink.actorRef(clientActor, new Status.Success("success")));
+        // frames are shared between all clients, so only unwrap them here, never re-encode
+        // slow clients get their frames conflated to the latest per lot, instead of queued or dropped
+        final Source<Message, NotUsed> source = Source.fromPublisher(webSocketIn)
+                .via(outboundBuffers.perConnection())
+                .map(frame -> frame.getMessage(format));
+        final Flow<Message, Message, NotUsed> flow = Flow.fromSinkAndSource(sink, source);
 
         // Unhook the user actor when the websocket flow terminates
         // http://doc.akka.io/docs/akka/current/scala/stream/stages-overview.html#watchTermination
@@ -219,25 +490,95 @@ public class ParkingController extends Controller {
         });
     }
 
+    /**
+     * broadcast.mode = "hub": the connection simply attaches to the broadcast hub,
+     * there's no actor to talk to, so the client's (un)subscriptions are merged into its stream of
+     * hub frames, and a HubSubscription applies them in order with those frames
+     */
+    public Flow<Message, Message, NotUsed> createHubWebSocketFlow(long since, WireFormat format) {
+        final Collection<String> knownLots = stateStore.getRegistry().getNames();
+        final Source<Object, NotUsed> frames = frameHub.subscribe(since).map(frame -> (Object) frame);
+        return Flow.<Message>create()
+                .mapConcat(ParkingController::parseIncomingMessage)
+                .mapConcat(ParkingController::parseSubscription)
+                .map(incoming -> (Object) incoming)
+                .merge(frames)
+                .statefulMapConcat(() -> new HubSubscription(knownLots))
+                .via(outboundBuffers.perConnection())
+                .map(frame -> frame.getMessage(format));
+    }
 
-    public F.Either<Result, Flow<JsonNode, JsonNode, ?>> logException(Throwable throwable) {
-        // https://docs.oracle.com/javase/tutorial/java/generics/capture.html
-        logger.severe(String.format("Cannot create websocket: %s", throwable.toString()));
-        Result result = Results.internalServerError("error");
-        return F.Either.Left(result);
+    /**
+     * per hub connection: the lots the client is subscribed to, filtering the hub frames it gets
+     * <p>
+     * subscribing sends the latest occupancy of every subscribed lot; that is built from the current state,
+     * so hub frames still on their way to this stage can be older, those are dropped by their seq,
+     * otherwise they would move the client back to an older occupancy
+     */
+    private class HubSubscription implements Function<Object, Iterable<EncodedFrame>> {
+        private final Collection<String> knownLots;
+        private SubscribedLots subscribed = SubscribedLots.ALL;
+        //seq of the last catch-up, diffs up to it are already covered
+        private long coveredSeq = -1;
+
+        HubSubscription(Collection<String> knownLots) {
+            this.knownLots = knownLots;
+        }
+
+        @Override
+        public Iterable<EncodedFrame> apply(Object element) {
+            if (element instanceof IncomingSubscription) {
+                IncomingSubscription incoming = (IncomingSubscription) element;
+                subscribed = subscribed.apply(incoming, knownLots);
+                if (!IncomingSubscription.SUBSCRIBE.equals(incoming.getHeader())) {
+                    return Collections.emptyList();
+                }
+                EncodedFrame catchUp = fullStateFrames.latestOf(subscribed.isAll() ? null : subscribed.getLots());
+                coveredSeq = catchUp.getSeq();
+                return Collections.singletonList(catchUp);
+            }
+            EncodedFrame frame = (EncodedFrame) element;
+            if (!subscribed.wants(frame) || (frame.getSeq() >= 0 && frame.getSeq() <= coveredSeq)) {
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(frame);
+        }
+    }
+
+    private WireFormat wireFormat(Http.RequestHeader request) {
+        if (!"binary".equals(request.getQueryString("format"))) {
+            return WireFormat.JSON;
+        }
+        return "true".equals(request.getQueryString("deflate")) ? WireFormat.BINARY_DEFLATE : WireFormat.BINARY;
     }
 
+    private static Iterable<IncomingSubscription> parseSubscription(JsonNode json) {
+        try {
+            return Collections.singletonList(Json.fromJson(json, IncomingSubscription.class));
+        } catch (RuntimeException e) {
+            return Collections.emptyList();
+        }
+    }
 
     /**
-     * gets the number of milliseconds from current execution time till midnight
-     * @return milliseconds to midnight
+     * parses a text frame from the browser as json, anything else (or invalid json) is dropped
      */
-    private long timeTilMidnight() {
-        //http://stackoverflow.com/a/32683993
-        ZoneId zoneId = ZoneId.of( "America/Montreal" );
-        ZonedDateTime now = ZonedDateTime.now( zoneId );
-        LocalDate tomorrow = now.toLocalDate().plusDays(1);
-        ZonedDateTime tomorrowStart = tomorrow.atStartOfDay( zoneId );
-        return java.time.Duration.between(now, tomorrowStart).toMillis();
+    private static Iterable<JsonNode> parseIncomingMessage(Message message) {
+        if (message instanceof Message.Text) {
+            try {
+                return Collections.singletonList(Json.parse(((Message.Text) message).data()));
+            } catch (RuntimeException e) {
+                return Collections.emptyList();
+            }
+        }
+        return Collections.emptyList();
+    }
+
+
+    public F.Either<Result, Flow<Message, Message, ?>> logException(Throwable throwable) {
+        // https://docs.oracle.com/javase/tutorial/java/generics/capture.html
+        logger.severe(String.format("Cannot create websocket: %s", throwable.toString()));
+        Result result = Results.internalServerError("error");
+        return F.Either.Left(result);
     }
 }
@@ -0,0 +1,37 @@
+package models;
+
+import java.util.Map;
+
+/**
+ * The diff object to send to the client when updates are coalesced:
+ * the latest occupancy of every lot that changed during one broadcast window
+ */
+public class BatchDiffUpdate implements WebsocketMessage {
+    private Map<String, Integer> lots;
+    private long seq;
+    private final String header = BatchDiffUpdate.class.getSimpleName();
+
+    public BatchDiffUpdate(Map<String, Integer> lots, long seq) {
+        this.lots = lots;
+        this.seq = seq;
+    }
+
+    @Override
+    public String getHeader() {
+        return header;
+    }
+
+    /**
+     * @return map of lot name to its new occupancy
+     */
+    public Map<String, Integer> getLots() {
+        return lots;
+    }
+
+    /**
+     * @return the state version this batch brings the client up to, see DiffUpdate
+     */
+    public long getSeq() {
+        return seq;
+    }
+}
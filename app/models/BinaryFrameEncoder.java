@@ -0,0 +1,111 @@
+package models;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes websocket messages into the compact binary format of /wlots?format=binary
+ * <p>
+ * all numbers are big endian, strings are 2 byte length prefixed (modified) utf-8;
+ * the first byte of each frame is its type:
+ * <pre>
+ * FULL_STATE: type | seq (8) | epoch (string) | lot count (2) | per lot: name (string), maxCapacity (4), occupancy (4)
+ * UPDATES:    type | record count (2) | per record: lot index (2), occupancy (4), seq (8)
+ * KEEP_ALIVE: type
+ * </pre>
+ * the lots of a FULL_STATE frame form the dictionary: a lot's index is its position in that frame,
+ * which is its LotRegistry id.
+ * if the DEFLATED bit of the type is set, everything after the type byte is raw deflate compressed
+ */
+@Singleton
+public class BinaryFrameEncoder {
+    public static final byte FULL_STATE = 1;
+    public static final byte UPDATES = 2;
+    public static final byte KEEP_ALIVE = 3;
+    public static final byte DEFLATED = (byte) 0x80;
+
+    //lot ids are the order of the dictionary
+    private final LotRegistry registry;
+
+    @Inject
+    public BinaryFrameEncoder(LotRegistry registry) {
+        this.registry = registry;
+    }
+
+    public byte[] encode(WebsocketMessage message) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            if (message instanceof DiffUpdate) {
+                DiffUpdate diff = (DiffUpdate) message;
+                out.writeByte(UPDATES);
+                out.writeShort(1);
+                writeRecord(out, diff.getLot(), diff.getOccupancy(), diff.getSeq());
+            } else if (message instanceof BatchDiffUpdate) {
+                BatchDiffUpdate batch = (BatchDiffUpdate) message;
+                out.writeByte(UPDATES);
+                out.writeShort(batch.getLots().size());
+                for (Map.Entry<String, Integer> lot : batch.getLots().entrySet()) {
+                    writeRecord(out, lot.getKey(), lot.getValue(), batch.getSeq());
+                }
+            } else if (message instanceof FullStateUpdate) {
+                FullStateUpdate fullState = (FullStateUpdate) message;
+                out.writeByte(FULL_STATE);
+                out.writeLong(fullState.getSeq());
+                out.writeUTF(fullState.getEpoch());
+                out.writeShort(registry.size());
+                for (int lotId = 0; lotId < registry.size(); lotId++) {
+                    String lotName = registry.nameOf(lotId);
+                    ParkingLot lot = fullState.getLot(lotName);
+                    out.writeUTF(lotName);
+                    out.writeInt(lot == null ? 0 : lot.getMaxCapacity());
+                    out.writeInt(lot == null ? 0 : lot.getOccupancy());
+                }
+            } else if (message instanceof KeepAliveMessage) {
+                out.writeByte(KEEP_ALIVE);
+            } else {
+                throw new IllegalArgumentException("No binary encoding for " + message.getHeader());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param frame binary frame created by encode
+     * @return the frame with its payload deflated, or the frame itself if deflating wouldn't make it smaller
+     */
+    public byte[] deflate(byte[] frame) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(frame, 1, frame.length - 1);
+            deflater.finish();
+            byte[] compressed = new byte[frame.length];
+            compressed[0] = (byte) (frame[0] | DEFLATED);
+            int length = 1;
+            while (!deflater.finished() && length < compressed.length) {
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            if (!deflater.finished() || length >= frame.length) {
+                return frame;
+            }
+            return Arrays.copyOf(compressed, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writeRecord(DataOutputStream out, String lotName, int occupancy, long seq) throws IOException {
+        out.writeShort(registry.idOf(lotName));
+        out.writeInt(occupancy);
+        out.writeLong(seq);
+    }
+}
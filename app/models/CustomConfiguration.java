@@ -3,9 +3,11 @@ package models;
 import com.google.common.reflect.TypeToken;
 import com.google.gson.Gson;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 import play.Configuration;
 
 import java.lang.reflect.Type;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -13,10 +15,14 @@ import java.util.List;
  * parsing some application-specific objects, like:
  * 1. the json list of initial lot capacities
  * 2. the redis key that all our fields are namespaced to
+ * 3. which redis channels carry lot updates, depending on the update mode
  */
+@Singleton
 public class CustomConfiguration {
     private Configuration configuration;
     private Gson gson;
+    //parsed on first use, the config doesn't change while we run
+    private volatile List<ParkingLot> parkingLots;
 
     @Inject
     public CustomConfiguration(Configuration configuration, Gson gson) {
@@ -32,21 +38,183 @@ public class CustomConfiguration {
         return configuration.getString("redis.hashmapkey");
     }
 
+    /**
+     * @return unmodifiable list of the lots in our config, in config order
+     */
     public List<ParkingLot> getParkingLots() {
-        // Super hacky, stupid Play Framework api doesn't let you parse config easily
-        String jsonString = gson.toJson(configuration.asMap().get("lots"));
-        Type type = new TypeToken<List<ParkingLot>>() {
-        }.getType();
-        return gson.fromJson(jsonString, type);
+        List<ParkingLot> lots = parkingLots;
+        if (lots == null) {
+            // Super hacky, stupid Play Framework api doesn't let you parse config easily
+            String jsonString = gson.toJson(configuration.asMap().get("lots"));
+            Type type = new TypeToken<List<ParkingLot>>() {
+            }.getType();
+            List<ParkingLot> parsed = gson.fromJson(jsonString, type);
+            lots = Collections.unmodifiableList(parsed);
+            parkingLots = lots;
+        }
+        return lots;
     }
 
 
+    /**
+     * @return number of broadcaster shards to split websocket clients across,
+     * defaults to one per available core
+     */
+    public int getBroadcastShards() {
+        Integer shards = configuration.getInt("broadcast.shards");
+        if (shards == null || shards <= 0) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        return shards;
+    }
+
+    /**
+     * @return number of recent diffs kept for clients resuming a websocket session
+     */
+    public int getDiffHistorySize() {
+        Integer size = configuration.getInt("broadcast.historysize");
+        return size == null ? 0 : Math.max(0, size);
+    }
+
+    /**
+     * @return length of the window lot changes are coalesced in before broadcasting, 0 if disabled
+     */
+    public long getCoalesceWindowMillis() {
+        Long millis = configuration.getLong("broadcast.coalescemillis");
+        return millis == null ? 0 : Math.max(0, millis);
+    }
+
+    /**
+     * @return true if websocket connections attach to a single BroadcastHub,
+     * false for one ClientActor per connection
+     */
+    public boolean isHubBroadcastMode() {
+        return "hub".equalsIgnoreCase(configuration.getString("broadcast.mode"));
+    }
+
+    /**
+     * @return how long a connection may go without any frame before it is sent a keepalive
+     */
+    public long getKeepAliveIntervalMillis() {
+        Long millis = configuration.getLong("broadcast.keepalivemillis");
+        return millis == null ? 5000 : Math.max(100, millis);
+    }
+
+    /**
+     * @return how long a websocket client may stay unable to keep up before it is disconnected
+     */
+    public long getMaxBackedUpMillis() {
+        Long millis = configuration.getLong("broadcast.maxbackedupmillis");
+        return millis == null ? 30000 : Math.max(1, millis);
+    }
+
+    /**
+     * @return number of threads sensor updates are written to redis on
+     */
+    public int getIngestThreads() {
+        Integer threads = configuration.getInt("ingest.threads");
+        return threads == null ? 4 : Math.max(1, threads);
+    }
+
+    /**
+     * @return how many sensor updates may wait for an ingest thread before new ones are rejected
+     */
+    public int getIngestQueueSize() {
+        Integer size = configuration.getInt("ingest.queuesize");
+        return size == null ? 256 : Math.max(1, size);
+    }
+
+    /**
+     * @return seconds a rejected sensor is told to wait before retrying
+     */
+    public int getIngestRetryAfterSeconds() {
+        Integer seconds = configuration.getInt("ingest.retryafterseconds");
+        return seconds == null ? 1 : Math.max(1, seconds);
+    }
+
+    /**
+     * @return true if sensor diffs are summed per lot and written to redis periodically,
+     * false to write every diff right away
+     */
+    public boolean isWriteBehindEnabled() {
+        Boolean enabled = configuration.getBoolean("ingest.writebehind.enabled");
+        return enabled != null && enabled;
+    }
+
+    /**
+     * @return how often summed sensor diffs are written to redis, in write-behind mode
+     */
+    public long getWriteBehindFlushMillis() {
+        Long millis = configuration.getLong("ingest.writebehind.flushmillis");
+        return millis == null ? 100 : Math.max(1, millis);
+    }
+
+    /**
+     * @return how long a sensor diff may wait unwritten before new diffs are refused, in write-behind mode
+     */
+    public long getWriteBehindMaxStalenessMillis() {
+        Long millis = configuration.getLong("ingest.writebehind.maxstalenessmillis");
+        return millis == null ? 5000 : Math.max(1, millis);
+    }
+
+    /**
+     * @return true if updates go through the increment+clamp+publish lua script,
+     * false for plain HINCRBY with keyspace notifications
+     */
+    public boolean isScriptUpdateMode() {
+        return "script".equalsIgnoreCase(configuration.getString("redis.updatemode"));
+    }
+
     public String getRedisPatternChannelsWildcard() {
         return getRedisPatternChannelsPrefix() + "*";
     }
 
+    /**
+     * @return prefix of the channels the subscriber listens on; the rest of the channel is the lot name
+     */
     public String getRedisPatternChannelsPrefix() {
+        if (isScriptUpdateMode()) {
+            return getRedisOccupancyChannelsPrefix();
+        }
         return "__keyspace@" + String.valueOf(configuration.getInt("redis.database"))
                 + "__:" + getRedisKey();
     }
+
+    /**
+     * @return how often local lot state is checked against redis
+     */
+    public long getAntiEntropyIntervalMillis() {
+        Long millis = configuration.getLong("antientropy.intervalmillis");
+        return millis == null ? 5000 : Math.max(100, millis);
+    }
+
+    /**
+     * @return key of the counter the update script bumps on every update, in script update mode
+     */
+    public String getRedisUpdateSeqKey() {
+        return getRedisKey() + "updateseq";
+    }
+
+    /**
+     * @return how long the redis subscriber waits before its first reconnect attempt
+     */
+    public long getSubscriberMinBackoffMillis() {
+        Long millis = configuration.getLong("redis.subscriber.minbackoffmillis");
+        return millis == null ? 100 : Math.max(1, millis);
+    }
+
+    /**
+     * @return upper bound of the redis subscriber's exponential reconnect backoff
+     */
+    public long getSubscriberMaxBackoffMillis() {
+        Long millis = configuration.getLong("redis.subscriber.maxbackoffmillis");
+        return millis == null ? 30000 : Math.max(1, millis);
+    }
+
+    /**
+     * @return prefix of the channels the update script publishes new occupancy values to
+     */
+    public String getRedisOccupancyChannelsPrefix() {
+        return getRedisKey() + "occupancy:";
+    }
 }
@@ -2,15 +2,19 @@ package models;
 
 /**
  * The diff object to send to the client
+ * seq is the state version this diff brings the client up to,
+ * clients pass the last seq they saw when reconnecting to only receive what they missed
  */
 public class DiffUpdate implements WebsocketMessage {
     private String lot;
     private int occupancy;
+    private long seq;
     private final String header = DiffUpdate.class.getSimpleName();
 
-    public DiffUpdate(String lot, int occupancy) {
+    public DiffUpdate(String lot, int occupancy, long seq) {
         this.lot = lot;
         this.occupancy = occupancy;
+        this.seq = seq;
     }
 
     @Override
@@ -25,4 +29,8 @@ public class DiffUpdate implements WebsocketMessage {
     public int getOccupancy() {
         return occupancy;
     }
+
+    public long getSeq() {
+        return seq;
+    }
 }
@@ -0,0 +1,167 @@
+package models;
+
+import akka.util.ByteString;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import play.http.websocket.Message;
+import play.libs.Json;
+
+/**
+ * An already serialized websocket frame
+ * <p>
+ * clientManager encodes each broadcast once into one of these, and the exact same
+ * (immutable) instance is then handed to every clientActor and websocket source,
+ * instead of every client re-running Json.toJson + stringify on the same object
+ * <p>
+ * the json encoding is done up front; binary encodings are done by the first
+ * client that needs them, and then shared by all other clients using that format
+ */
+public final class EncodedFrame {
+    private final WebsocketMessage source;
+    private final BinaryFrameEncoder binaryEncoder;
+    private final String text;
+    private final Message message;
+    //null for frames that aren't a timed lot update
+    private final UpdateStamp stamp;
+    //lazily encoded, racing clients may both encode, which is harmless
+    private volatile Message binaryMessage;
+    private volatile Message deflatedMessage;
+
+    private EncodedFrame(WebsocketMessage source, BinaryFrameEncoder binaryEncoder, String text, Message message,
+                         UpdateStamp stamp) {
+        this.source = source;
+        this.binaryEncoder = binaryEncoder;
+        this.text = text;
+        this.message = message;
+        this.stamp = stamp;
+    }
+
+    /**
+     * serializes the websocket message to json text exactly once;
+     * the frame can't be sent to binary clients, use of() for anything that may reach them
+     *
+     * @param websocketMessage message to send to clients
+     * @return frame that can be shared across all json client websockets
+     */
+    public static EncodedFrame json(WebsocketMessage websocketMessage) {
+        return of(websocketMessage, null);
+    }
+
+    /**
+     * @param websocketMessage message to send to clients
+     * @param binaryEncoder    encoder for binary clients, null if there are none
+     * @return frame that can be shared across all client websockets
+     */
+    public static EncodedFrame of(WebsocketMessage websocketMessage, BinaryFrameEncoder binaryEncoder) {
+        return of(websocketMessage, binaryEncoder, null);
+    }
+
+    /**
+     * @param stamp when the update this frame carries entered the system, null if it isn't timed
+     * @return frame that can be shared across all client websockets
+     */
+    public static EncodedFrame of(WebsocketMessage websocketMessage, BinaryFrameEncoder binaryEncoder, UpdateStamp stamp) {
+        try {
+            String text = Json.mapper().writeValueAsString(websocketMessage);
+            return new EncodedFrame(websocketMessage, binaryEncoder, text, new Message.Text(text), stamp);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public String getHeader() {
+        return source.getHeader();
+    }
+
+    /**
+     * @return the state version this frame brings a client up to,
+     * -1 for frames that don't carry one (e.g. keepalives)
+     */
+    public long getSeq() {
+        if (source instanceof DiffUpdate) {
+            return ((DiffUpdate) source).getSeq();
+        } else if (source instanceof BatchDiffUpdate) {
+            return ((BatchDiffUpdate) source).getSeq();
+        } else if (source instanceof FullStateUpdate) {
+            return ((FullStateUpdate) source).getSeq();
+        }
+        return -1;
+    }
+
+    /**
+     * @return the message this frame encodes
+     */
+    public WebsocketMessage getSource() {
+        return source;
+    }
+
+    /**
+     * @return when the update this frame carries entered the system, null if it isn't timed
+     */
+    public UpdateStamp getStamp() {
+        return stamp;
+    }
+
+    /**
+     * @return the same frame, sharing its encodings, but not timed; for frames sent again later,
+     * e.g. diffs replayed to resuming clients, which would otherwise count as very slow deliveries
+     */
+    public EncodedFrame withoutStamp() {
+        if (stamp == null) {
+            return this;
+        }
+        EncodedFrame unstamped = new EncodedFrame(source, binaryEncoder, text, message, null);
+        unstamped.binaryMessage = binaryMessage;
+        unstamped.deflatedMessage = deflatedMessage;
+        return unstamped;
+    }
+
+    /**
+     * @return the json encoding of the message
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return the websocket message, ready to be written out by play
+     */
+    public Message getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the websocket message in the given format, ready to be written out by play
+     */
+    public Message getMessage(WireFormat format) {
+        if (format != WireFormat.JSON && binaryEncoder == null) {
+            throw new IllegalStateException(String.format("%s frame was encoded for json clients only, not for %s",
+                    getHeader(), format));
+        }
+        switch (format) {
+            case BINARY:
+                return getBinaryMessage();
+            case BINARY_DEFLATE:
+                return getDeflatedMessage();
+            default:
+                return message;
+        }
+    }
+
+    private Message getBinaryMessage() {
+        Message binary = binaryMessage;
+        if (binary == null) {
+            binary = new Message.Binary(ByteString.fromArray(binaryEncoder.encode(source)));
+            binaryMessage = binary;
+        }
+        return binary;
+    }
+
+    private Message getDeflatedMessage() {
+        Message deflated = deflatedMessage;
+        if (deflated == null) {
+            deflated = new Message.Binary(ByteString.fromArray(binaryEncoder.deflate(binaryEncoder.encode(source))));
+            deflatedMessage = deflated;
+        }
+        return deflated;
+    }
+}
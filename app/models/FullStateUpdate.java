@@ -5,16 +5,37 @@ import java.util.Map;
 
 /**
  * Created by brianzhao on 2/12/17.
+ * <p>
+ * besides all lots, carries the state version ("seq") it represents and this server's "epoch";
+ * a client reconnecting with both gets only the diffs it missed instead of another full state
  */
 public class FullStateUpdate extends HashMap<String,Object> implements WebsocketMessage {
 
-    public FullStateUpdate(Map<String, ParkingLot> input) {
+    public FullStateUpdate(Map<String, ParkingLot> input, long seq, String epoch) {
         super(input);
         this.put("header", FullStateUpdate.class.getSimpleName());
+        this.put("seq", seq);
+        this.put("epoch", epoch);
     }
 
     @Override
     public String getHeader() {
         return (String) this.get("header");
     }
+
+    public long getSeq() {
+        return (Long) this.get("seq");
+    }
+
+    public String getEpoch() {
+        return (String) this.get("epoch");
+    }
+
+    /**
+     * @return the lot with that name, or null if this update has no such lot
+     */
+    public ParkingLot getLot(String lotName) {
+        Object lot = this.get(lotName);
+        return lot instanceof ParkingLot ? (ParkingLot) lot : null;
+    }
 }
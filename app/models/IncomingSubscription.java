@@ -0,0 +1,37 @@
+package models;
+
+import java.util.List;
+
+/**
+ * Incoming json sent by websocket clients to choose which lots they get updates for:
+ * {"header": "Subscribe", "lots": ["A", "F1"]} or {"header": "Unsubscribe", "lots": ["A"]}
+ * <p>
+ * leaving out "lots" means every lot
+ */
+public class IncomingSubscription {
+    public static final String SUBSCRIBE = "Subscribe";
+    public static final String UNSUBSCRIBE = "Unsubscribe";
+
+    private String header;
+    private List<String> lots;
+
+    public IncomingSubscription() {
+        //empty constructor required for Jackson
+    }
+
+    public IncomingSubscription(String header, List<String> lots) {
+        this.header = header;
+        this.lots = lots;
+    }
+
+    public String getHeader() {
+        return header;
+    }
+
+    /**
+     * @return lots to (un)subscribe, null for every lot
+     */
+    public List<String> getLots() {
+        return lots;
+    }
+}
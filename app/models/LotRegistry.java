@@ -0,0 +1,94 @@
+package models;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every lot in our config, each with a dense int id (its position in the config), built once at startup
+ * <p>
+ * hot paths work with ids: lot state lives in primitive arrays indexed by id (see ParkingStateStore),
+ * and redis channels map straight to ids, so handling a notification never has to cut the
+ * lot name out of the channel; names only come back in when a message is sent to clients,
+ * and are then always the same interned instances
+ * <p>
+ * immutable, safe to share between threads
+ */
+@Singleton
+public class LotRegistry {
+    public static final int UNKNOWN = -1;
+
+    private final String[] names;
+    private final int[] maxCapacities;
+    private final Map<String, Integer> ids;
+    //full channel name a lot's notifications arrive on, to its id
+    private final Map<String, Integer> idsByChannel;
+
+    @Inject
+    public LotRegistry(CustomConfiguration configuration) {
+        this(configuration.getParkingLots(), configuration.getRedisPatternChannelsPrefix());
+    }
+
+    /**
+     * @param lots          lots in id order
+     * @param channelPrefix prefix of the redis channels lot notifications arrive on
+     */
+    public LotRegistry(List<ParkingLot> lots, String channelPrefix) {
+        int size = lots.size();
+        this.names = new String[size];
+        this.maxCapacities = new int[size];
+        this.ids = new HashMap<>(size * 2);
+        this.idsByChannel = new HashMap<>(size * 2);
+        for (int id = 0; id < size; id++) {
+            ParkingLot lot = lots.get(id);
+            names[id] = lot.getName().intern();
+            maxCapacities[id] = lot.getMaxCapacity();
+            ids.put(names[id], id);
+            idsByChannel.put(channelPrefix + names[id], id);
+        }
+    }
+
+    /**
+     * @return number of lots, ids go from 0 to size() - 1
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @return id of the lot, UNKNOWN if it isn't in our config
+     */
+    public int idOf(String lotName) {
+        Integer id = lotName == null ? null : ids.get(lotName);
+        return id == null ? UNKNOWN : id;
+    }
+
+    /**
+     * @param channel full name of the redis channel a notification arrived on
+     * @return id of the lot the channel is about, UNKNOWN if none
+     */
+    public int idOfChannel(String channel) {
+        Integer id = idsByChannel.get(channel);
+        return id == null ? UNKNOWN : id;
+    }
+
+    public String nameOf(int id) {
+        return names[id];
+    }
+
+    public int maxCapacityOf(int id) {
+        return maxCapacities[id];
+    }
+
+    /**
+     * @return names of all lots, in id order
+     */
+    public List<String> getNames() {
+        return Collections.unmodifiableList(Arrays.asList(names));
+    }
+}
@@ -0,0 +1,41 @@
+package models;
+
+/**
+ * Result of one entry of a batch update, sent back to the Raspberry Pi
+ * entries are reported in the same order they were posted in
+ */
+public class LotUpdateResult {
+    public static final String OK = "ok";
+    public static final String UNKNOWN_LOT = "unknown lot";
+
+    private String lot;
+    private int diff;
+    private String status;
+    private Integer occupancy;
+
+    public LotUpdateResult(String lot, int diff, String status, Integer occupancy) {
+        this.lot = lot;
+        this.diff = diff;
+        this.status = status;
+        this.occupancy = occupancy;
+    }
+
+    public String getLot() {
+        return lot;
+    }
+
+    public int getDiff() {
+        return diff;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    /**
+     * @return occupancy of the lot once the whole batch was applied, null if the entry was rejected
+     */
+    public Integer getOccupancy() {
+        return occupancy;
+    }
+}
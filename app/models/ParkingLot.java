@@ -1,25 +1,46 @@
 package models;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 /**
  * Model of parking lot
  * is schema of json in play config
- * also used as object in clientManager's state
+ * also used as object in the parkingStateStore's snapshots, so it is immutable:
+ * a change in occupancy creates a new ParkingLot
  */
 public class ParkingLot {
     private final String name;
-    private int occupancy;
+    private final int occupancy;
     private final int maxCapacity;
+    //version of the state store in which this lot last changed, not part of any json
+    private final long version;
 
     public ParkingLot(String name, int occupancy, int maxCapacity) {
+        this(name, occupancy, maxCapacity, 0);
+    }
+
+    /**
+     * @param version version of the state store in which this lot last changed
+     */
+    public ParkingLot(String name, int occupancy, int maxCapacity, long version) {
         this.name = name;
         this.occupancy = occupancy;
         this.maxCapacity = maxCapacity;
+        this.version = version;
     }
 
     public ParkingLot(ParkingLot other) {
         this.name = other.name;
         this.occupancy = other.occupancy;
         this.maxCapacity = other.maxCapacity;
+        this.version = other.version;
+    }
+
+    /**
+     * @return copy of this lot with a new occupancy, changed in state store version 'version'
+     */
+    public ParkingLot withOccupancy(int occupancy, long version) {
+        return new ParkingLot(name, occupancy, maxCapacity, version);
     }
 
     @Override
@@ -52,8 +73,9 @@ public class ParkingLot {
         return maxCapacity;
     }
 
-    public void setOccupancy(int occupancy) {
-        this.occupancy = occupancy;
+    @JsonIgnore
+    public long getVersion() {
+        return version;
     }
 
     @Override
@@ -62,6 +84,7 @@ public class ParkingLot {
                 "name='" + name + '\'' +
                 ", occupancy=" + occupancy +
                 ", maxCapacity=" + maxCapacity +
+                ", version=" + version +
                 '}';
     }
 }
@@ -0,0 +1,105 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Frames waiting to be written to one slow websocket client, conflated by lot
+ * <p>
+ * only the newest frame mentioning each lot is kept, and a full state replaces everything
+ * queued before it, so memory is bounded by the number of lots no matter how far behind
+ * the client is; a keepalive is only kept if nothing else is pending
+ * <p>
+ * not thread safe, owned by a single websocket stream
+ */
+public class PendingFrames {
+    private final long sinceNanos;
+    private EncodedFrame fullState;
+    //newest frame (DiffUpdate or BatchDiffUpdate) mentioning each lot,
+    //and how many lots each of those frames is still the newest for
+    private final Map<String, EncodedFrame> lotFrames = new HashMap<>();
+    private final Map<EncodedFrame, Integer> lotFrameRefs = new IdentityHashMap<>();
+    //frames about no lot in particular, other than keepalives, kept in order
+    private final List<EncodedFrame> otherFrames = new ArrayList<>();
+    private EncodedFrame keepAlive;
+
+    /**
+     * @param sinceNanos System.nanoTime() when the client started falling behind
+     */
+    public PendingFrames(long sinceNanos) {
+        this.sinceNanos = sinceNanos;
+    }
+
+    public long getSinceNanos() {
+        return sinceNanos;
+    }
+
+    public PendingFrames add(EncodedFrame frame) {
+        WebsocketMessage source = frame.getSource();
+        if (source instanceof FullStateUpdate) {
+            fullState = frame;
+            lotFrames.clear();
+            lotFrameRefs.clear();
+            keepAlive = null;
+        } else if (source instanceof DiffUpdate) {
+            putLotFrame(((DiffUpdate) source).getLot(), frame);
+        } else if (source instanceof BatchDiffUpdate) {
+            for (String lot : ((BatchDiffUpdate) source).getLots().keySet()) {
+                putLotFrame(lot, frame);
+            }
+        } else if (source instanceof KeepAliveMessage) {
+            keepAlive = frame;
+        } else {
+            otherFrames.add(frame);
+        }
+        return this;
+    }
+
+    /**
+     * @return number of frames drain() would currently return
+     */
+    public int size() {
+        int size = lotFrameRefs.size() + otherFrames.size() + (fullState == null ? 0 : 1);
+        return size == 0 && keepAlive != null ? 1 : size;
+    }
+
+    /**
+     * @return the frames to send, in an order that leaves the client with the latest state:
+     * the full state first, then lot frames by seq (a batch that still carries the latest
+     * value of some lot is sent whole, later frames then overwrite its stale lots)
+     */
+    public List<EncodedFrame> drain() {
+        List<EncodedFrame> frames = new ArrayList<>();
+        if (fullState != null) {
+            frames.add(fullState);
+        }
+        List<EncodedFrame> newestLotFrames = new ArrayList<>(lotFrameRefs.keySet());
+        newestLotFrames.sort(Comparator.comparingLong(EncodedFrame::getSeq));
+        frames.addAll(newestLotFrames);
+        frames.addAll(otherFrames);
+        if (frames.isEmpty() && keepAlive != null) {
+            frames.add(keepAlive);
+        }
+        return frames;
+    }
+
+    private void putLotFrame(String lot, EncodedFrame frame) {
+        EncodedFrame previous = lotFrames.put(lot, frame);
+        if (previous == frame) {
+            return;
+        }
+        if (previous != null) {
+            int refs = lotFrameRefs.get(previous) - 1;
+            if (refs == 0) {
+                lotFrameRefs.remove(previous);
+            } else {
+                lotFrameRefs.put(previous, refs);
+            }
+        }
+        lotFrameRefs.merge(frame, 1, Integer::sum);
+    }
+}
@@ -0,0 +1,101 @@
+package models;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The lots one client gets updates for, every lot unless the client asked otherwise
+ * <p>
+ * immutable, applying a subscription change returns a new instance;
+ * lots that aren't in our config are never part of it, so clients can't grow it unboundedly
+ */
+public final class SubscribedLots {
+    public static final SubscribedLots ALL = new SubscribedLots(null);
+
+    //null means every lot
+    private final Set<String> lots;
+
+    private SubscribedLots(Set<String> lots) {
+        this.lots = lots == null ? null : Collections.unmodifiableSet(lots);
+    }
+
+    /**
+     * @param lots      lots asked for, null for every lot
+     * @param knownLots names of every lot in our config
+     */
+    public static SubscribedLots of(Collection<String> lots, Collection<String> knownLots) {
+        if (lots == null) {
+            return ALL;
+        }
+        Set<String> subscribed = new HashSet<>(lots);
+        subscribed.retainAll(knownLots);
+        return new SubscribedLots(subscribed);
+    }
+
+    public boolean isAll() {
+        return lots == null;
+    }
+
+    /**
+     * @return the subscribed lots, only meaningful if not isAll()
+     */
+    public Set<String> getLots() {
+        return lots == null ? Collections.emptySet() : lots;
+    }
+
+    public boolean contains(String lot) {
+        return lots == null || lots.contains(lot);
+    }
+
+    /**
+     * @return false only for diffs about none of the subscribed lots, every other frame is always wanted
+     */
+    public boolean wants(EncodedFrame frame) {
+        if (lots == null) {
+            return true;
+        }
+        WebsocketMessage source = frame.getSource();
+        if (source instanceof DiffUpdate) {
+            return lots.contains(((DiffUpdate) source).getLot());
+        } else if (source instanceof BatchDiffUpdate) {
+            for (String lot : ((BatchDiffUpdate) source).getLots().keySet()) {
+                if (lots.contains(lot)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * subscribing while getting every lot switches to just the given lots,
+     * unsubscribing while getting every lot switches to every other lot
+     *
+     * @param request   what the client asked for
+     * @param knownLots names of every lot in our config
+     * @return the lots the client gets updates for from now on
+     */
+    public SubscribedLots apply(IncomingSubscription request, Collection<String> knownLots) {
+        Collection<String> requested = request.getLots();
+        if (IncomingSubscription.SUBSCRIBE.equals(request.getHeader())) {
+            if (requested == null) {
+                return ALL;
+            }
+            Set<String> subscribed = new HashSet<>(getLots());
+            subscribed.addAll(requested);
+            subscribed.retainAll(knownLots);
+            return new SubscribedLots(subscribed);
+        } else if (IncomingSubscription.UNSUBSCRIBE.equals(request.getHeader())) {
+            if (requested == null) {
+                return new SubscribedLots(Collections.emptySet());
+            }
+            Set<String> subscribed = new HashSet<>(lots == null ? knownLots : lots);
+            subscribed.removeAll(requested);
+            return new SubscribedLots(subscribed);
+        }
+        return this;
+    }
+}
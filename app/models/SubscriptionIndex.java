@@ -0,0 +1,132 @@
+package models;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * The lots each client is subscribed to, indexed by lot, so a diff only costs as many sends as there are
+ * clients interested in that lot (plus the ones getting every lot), however many clients there are
+ * <p>
+ * not thread safe, owned by a single BroadcastShard
+ *
+ * @param <C> client handle, e.g. its ActorRef
+ */
+public final class SubscriptionIndex<C> {
+    private final Map<C, SubscribedLots> clients = new HashMap<>();
+    //clients getting every lot, and clients getting only some lots, by lot
+    private final Set<C> allLotsClients = new HashSet<>();
+    private final Map<String, Set<C>> clientsByLot = new HashMap<>();
+
+    /**
+     * adds a client getting every lot
+     */
+    public void add(C client) {
+        remove(client);
+        clients.put(client, SubscribedLots.ALL);
+        allLotsClients.add(client);
+    }
+
+    /**
+     * @return what the client is subscribed to, null if it isn't in the index
+     */
+    public SubscribedLots get(C client) {
+        return clients.get(client);
+    }
+
+    /**
+     * @return false if the client isn't in the index (e.g. already closed), nothing changes then
+     */
+    public boolean update(C client, SubscribedLots subscribed) {
+        SubscribedLots previous = clients.get(client);
+        if (previous == null) {
+            return false;
+        }
+        unindex(client, previous);
+        index(client, subscribed);
+        clients.put(client, subscribed);
+        return true;
+    }
+
+    public void remove(C client) {
+        SubscribedLots previous = clients.remove(client);
+        if (previous != null) {
+            unindex(client, previous);
+        }
+    }
+
+    public int size() {
+        return clients.size();
+    }
+
+    /**
+     * @return clients subscribed to just some lots, this one among them
+     */
+    public Set<C> clientsOf(String lot) {
+        Set<C> lotClients = clientsByLot.get(lot);
+        return lotClients == null ? Collections.emptySet() : Collections.unmodifiableSet(lotClients);
+    }
+
+    /**
+     * @return lots at least one client subscribed to individually
+     */
+    public Set<String> indexedLots() {
+        return Collections.unmodifiableSet(clientsByLot.keySet());
+    }
+
+    /**
+     * calls action once for every client that wants the frame
+     */
+    public void forEachRecipient(EncodedFrame frame, Consumer<C> action) {
+        WebsocketMessage source = frame.getSource();
+        if (source instanceof DiffUpdate) {
+            allLotsClients.forEach(action);
+            Set<C> lotClients = clientsByLot.get(((DiffUpdate) source).getLot());
+            if (lotClients != null) {
+                lotClients.forEach(action);
+            }
+        } else if (source instanceof BatchDiffUpdate) {
+            allLotsClients.forEach(action);
+            //a client interested in several lots of the batch still gets it only once
+            Set<C> interested = new HashSet<>();
+            for (String lot : ((BatchDiffUpdate) source).getLots().keySet()) {
+                Set<C> lotClients = clientsByLot.get(lot);
+                if (lotClients != null) {
+                    interested.addAll(lotClients);
+                }
+            }
+            interested.forEach(action);
+        } else {
+            clients.keySet().forEach(action);
+        }
+    }
+
+    private void index(C client, SubscribedLots subscribed) {
+        if (subscribed.isAll()) {
+            allLotsClients.add(client);
+            return;
+        }
+        for (String lot : subscribed.getLots()) {
+            clientsByLot.computeIfAbsent(lot, ignored -> new HashSet<>()).add(client);
+        }
+    }
+
+    private void unindex(C client, SubscribedLots subscribed) {
+        if (subscribed.isAll()) {
+            allLotsClients.remove(client);
+            return;
+        }
+        for (String lot : subscribed.getLots()) {
+            Set<C> lotClients = clientsByLot.get(lot);
+            if (lotClients != null) {
+                lotClients.remove(client);
+                if (lotClients.isEmpty()) {
+                    clientsByLot.remove(lot);
+                }
+            }
+        }
+    }
+}
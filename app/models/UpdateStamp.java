@@ -0,0 +1,35 @@
+package models;
+
+/**
+ * When the lot update a broadcast frame carries entered the system, so its delivery can be timed
+ * <p>
+ * ingestMillis is wall clock time, as the update may have been posted to another backend;
+ * it is 0 if unknown (e.g. keyspace update mode, or a repair by antiEntropy).
+ * broadcastNanos is System.nanoTime() of this backend when clientManager broadcast the frame
+ */
+public final class UpdateStamp {
+    private final int lotId;
+    private final long ingestMillis;
+    private final long broadcastNanos;
+
+    /**
+     * @param lotId LotRegistry id of the lot the frame is about, -1 if it is about several lots
+     */
+    public UpdateStamp(int lotId, long ingestMillis, long broadcastNanos) {
+        this.lotId = lotId;
+        this.ingestMillis = ingestMillis;
+        this.broadcastNanos = broadcastNanos;
+    }
+
+    public int getLotId() {
+        return lotId;
+    }
+
+    public long getIngestMillis() {
+        return ingestMillis;
+    }
+
+    public long getBroadcastNanos() {
+        return broadcastNanos;
+    }
+}
@@ -0,0 +1,13 @@
+package models;
+
+/**
+ * Encoding a websocket client asked for when connecting to /wlots
+ */
+public enum WireFormat {
+    //json text frames, the default
+    JSON,
+    //compact binary frames, see BinaryFrameEncoder
+    BINARY,
+    //binary frames, deflated whenever that makes them smaller
+    BINARY_DEFLATE
+}
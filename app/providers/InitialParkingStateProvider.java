@@ -12,7 +12,8 @@ import java.util.Map;
 
 /**
  * Looks up initial Redis state for all parking lots
- * If key and/or lot fields do not exist, then default to 0
+ * If key and/or lot fields do not exist, then default to the occupancy in our config
+ * Only used to seed the parkingStateStore
  */
 public class InitialParkingStateProvider implements Provider<Map<String, ParkingLot>> {
 
@@ -29,14 +30,10 @@ public class InitialParkingStateProvider implements Provider<Map<String, Parking
     public Map<String, ParkingLot> get() {
         Map<String, ParkingLot> result = new HashMap<>();
         List<ParkingLot> initialState = configuration.getParkingLots();
+        Map<String, Integer> latestOccupancy = redisUpdater.getAllLotOccupancy();
         for (ParkingLot lot : initialState) {
-            result.put(lot.getName(), lot);
-        }
-
-        try {
-            redisUpdater.updateParkingLots(result);
-        } finally {
-            redisUpdater.close();
+            Integer occupancy = latestOccupancy.get(lot.getName());
+            result.put(lot.getName(), occupancy == null ? lot : lot.withOccupancy(occupancy, 0));
         }
         return result;
     }
@@ -0,0 +1,109 @@
+package services;
+
+import actors.messages.RefreshState;
+import akka.actor.ActorRef;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import models.ParkingLot;
+import utils.LatencyTimer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Periodic check that our lot state still matches redis, in case a notification got lost
+ * <p>
+ * every run only compares two numbers: a digest computed by redis over its occupancies,
+ * and the same digest over the state store. only when they differ are the lots read back
+ * and compared one by one.
+ * a lot has to differ on two consecutive runs before it's repaired, so a notification
+ * that is merely still on its way isn't counted as drift; repaired lots are sent to
+ * clientManager as a RefreshState, which broadcasts them
+ * <p>
+ * runs on the redis dispatcher, clientManager is only involved if something actually differs
+ */
+@Singleton
+public class AntiEntropy implements Runnable {
+    private final Logger logger;
+    private final ActorRef clientManager;
+    private final RedisUpdater redisUpdater;
+    private final ParkingStateStore stateStore;
+    private final AtomicBoolean running = new AtomicBoolean();
+    //lots that differed on the previous run, with the occupancy redis had then
+    private Map<String, Integer> suspects = new HashMap<>();
+
+    private final LatencyTimer checkTimer;
+    private final LongAdder digestMismatches;
+    private final LongAdder lotsRepaired;
+
+    @Inject
+    public AntiEntropy(Logger logger,
+                       @Named("clientManagerActor") ActorRef clientManager,
+                       RedisUpdater redisUpdater,
+                       ParkingStateStore stateStore,
+                       MetricsRegistry metrics) {
+        this.logger = logger;
+        this.clientManager = clientManager;
+        this.redisUpdater = redisUpdater;
+        this.stateStore = stateStore;
+        this.checkTimer = metrics.timer("anti_entropy_check");
+        this.digestMismatches = metrics.counter("anti_entropy_digest_mismatches_total");
+        this.lotsRepaired = metrics.counter("anti_entropy_lots_repaired_total");
+    }
+
+    /**
+     * skipped if the previous run is still going, e.g. while redis is slow
+     */
+    @Override
+    public void run() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            reconcile();
+        } catch (Exception e) {
+            //keep the schedule alive, redis errors are already counted by redisUpdater
+            logger.warning(String.format("Anti-entropy check failed: %s", e));
+        } finally {
+            checkTimer.recordSince(start);
+            running.set(false);
+        }
+    }
+
+    private void reconcile() {
+        long remoteDigest = redisUpdater.getOccupancyDigest();
+        ParkingStateStore.Snapshot state = stateStore.get();
+        if (remoteDigest == redisUpdater.digestOf(state::getOccupancy)) {
+            suspects.clear();
+            return;
+        }
+        digestMismatches.increment();
+
+        //clientManager skips lots that change after this, so a notification racing the read wins
+        long readVersion = stateStore.get().getVersion();
+        Map<String, Integer> latestOccupancy = redisUpdater.getAllLotOccupancy();
+        ParkingStateStore.Snapshot latestState = stateStore.get();
+        Map<String, Integer> differing = new HashMap<>();
+        Map<String, Integer> repairs = new HashMap<>();
+        for (Map.Entry<String, Integer> entry : latestOccupancy.entrySet()) {
+            ParkingLot lot = latestState.getLot(entry.getKey());
+            if (lot == null || lot.getOccupancy() == entry.getValue()) {
+                continue;
+            }
+            differing.put(entry.getKey(), entry.getValue());
+            if (suspects.containsKey(entry.getKey())) {
+                repairs.put(entry.getKey(), entry.getValue());
+            }
+        }
+        suspects = differing;
+        if (!repairs.isEmpty()) {
+            lotsRepaired.add(repairs.size());
+            clientManager.tell(new RefreshState(repairs, readVersion), ActorRef.noSender());
+        }
+    }
+}
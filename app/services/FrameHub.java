@@ -0,0 +1,234 @@
+package services;
+
+import akka.NotUsed;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.japi.Pair;
+import akka.japi.function.Function;
+import akka.japi.function.Procedure;
+import akka.stream.Materializer;
+import akka.stream.OverflowStrategy;
+import akka.stream.javadsl.BroadcastHub;
+import akka.stream.javadsl.Keep;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import models.BatchDiffUpdate;
+import models.BinaryFrameEncoder;
+import models.CustomConfiguration;
+import models.EncodedFrame;
+import models.KeepAliveMessage;
+import models.LotRegistry;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stream of every frame clientManager broadcasts, materialized once into a BroadcastHub
+ * <p>
+ * feeds GET /lots/stream, and /wlots as well when broadcast.mode = "hub": a connection then only
+ * attaches a consumer to the hub, no actor, no ask round trips and no registration with clientManager,
+ * which makes connecting much cheaper during connection storms.
+ * <p>
+ * every consumer starts with a frame bringing it up to the current state: the full state, or, for a
+ * client resuming from a seq of this epoch, one BatchDiffUpdate of the lots whose version is newer.
+ * attaching to the hub is asynchronous, so a diff may slip through between building that frame and
+ * actually being attached; once the first frame arrives over the hub (at the latest, the next attach check,
+ * published once per keepalive interval and never passed on to clients) the state is checked again,
+ * and diffs the client already has are skipped
+ * <p>
+ * the hub's input drops its oldest frames if it falls behind during a burst, rather than block clientManager;
+ * every frame therefore travels with the seq of the frame published before it, and a consumer that
+ * gets a frame whose predecessor it never saw brings itself up to date again, as on attaching
+ */
+@Singleton
+public class FrameHub {
+    //frames queued in front of the hub, and frames the hub buffers for its slowest consumer;
+    //every connection conflates behind the hub (see outboundBuffers), so consumers hardly ever lag
+    private static final int INPUT_BUFFER_SIZE = 1024;
+    private static final int HUB_BUFFER_SIZE = 256;
+
+    private final FullStateFrames fullStateFrames;
+    private final ParkingStateStore stateStore;
+    private final BinaryFrameEncoder binaryEncoder;
+    private final boolean servesWebSockets;
+    private final ActorRef input;
+    private final Source<Published, NotUsed> frames;
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder droppedFrames;
+    private final LongAdder resyncs;
+    //only ever compared by identity, swallowed by every consumer
+    private final Published attachCheck;
+    //only touched by publish(), i.e. by clientManager
+    private long publishedFrames;
+    private long lastPublishedSeq = -1;
+
+    @Inject
+    public FrameHub(CustomConfiguration configuration,
+                    ActorSystem actorSystem,
+                    Materializer materializer,
+                    FullStateFrames fullStateFrames,
+                    ParkingStateStore stateStore,
+                    BinaryFrameEncoder binaryEncoder,
+                    MetricsRegistry metrics) {
+        this.fullStateFrames = fullStateFrames;
+        this.stateStore = stateStore;
+        this.binaryEncoder = binaryEncoder;
+        this.servesWebSockets = configuration.isHubBroadcastMode();
+        this.attachCheck = new Published(EncodedFrame.of(new KeepAliveMessage(), binaryEncoder), -1, -1);
+        Pair<ActorRef, Source<Published, NotUsed>> hub =
+                Source.<Published>actorRef(INPUT_BUFFER_SIZE, OverflowStrategy.dropHead())
+                        .toMat(BroadcastHub.of(Published.class, HUB_BUFFER_SIZE), Keep.both())
+                        .run(materializer);
+        this.input = hub.first();
+        this.frames = hub.second();
+        this.droppedFrames = metrics.counter("hub_dropped_frames_total");
+        this.resyncs = metrics.counter("hub_consumer_resyncs_total");
+        //a hub without consumers backpressures, keep one attached so frames flow while nobody is connected;
+        //it also counts what the input dropped, by the gaps in the publish index
+        frames.runWith(Sink.foreach(new DropCounter()), materializer);
+        metrics.gauge("hub_connections", connections::sum);
+        FiniteDuration checkInterval = Duration.create(configuration.getKeepAliveIntervalMillis(), TimeUnit.MILLISECONDS);
+        actorSystem.scheduler().schedule(checkInterval, checkInterval, input, attachCheck,
+                actorSystem.dispatcher(), ActorRef.noSender());
+    }
+
+    /**
+     * @return true if websocket connections should attach to this hub, rather than to ClientActors
+     */
+    public boolean servesWebSockets() {
+        return servesWebSockets;
+    }
+
+    /**
+     * hands the frame to every attached connection
+     */
+    public void publish(EncodedFrame frame) {
+        Published published = new Published(frame, ++publishedFrames, lastPublishedSeq);
+        if (frame.getSeq() >= 0) {
+            lastPublishedSeq = frame.getSeq();
+        }
+        input.tell(published, ActorRef.noSender());
+    }
+
+    /**
+     * @param since last seq the client saw in the current epoch, -1 if none
+     * @return frames for a single new connection: what brings it up to date, then everything broadcast after it;
+     * to be materialized exactly once
+     */
+    public Source<EncodedFrame, NotUsed> subscribe(long since) {
+        //a seq we haven't reached can't be from this epoch, start over
+        CatchUp catchUp = new CatchUp(since > stateStore.get().getVersion() ? -1 : since);
+        Source<EncodedFrame, NotUsed> initial = Source.from(catchUp.toLatest());
+        return initial
+                .concat(frames.statefulMapConcat(() -> catchUp))
+                .watchTermination((notUsed, termination) -> {
+                    //runs on materialization, so a source that is never run isn't counted
+                    connections.increment();
+                    termination.whenComplete((done, failure) -> connections.decrement());
+                    return notUsed;
+                });
+    }
+
+    /**
+     * per connection: tracks the seq the client is up to date with, re-checks the state once
+     * attached, then skips diffs the client already has
+     */
+    private class CatchUp implements Function<Published, Iterable<EncodedFrame>> {
+        //-1 until the client got a full state
+        private long coveredSeq;
+        private boolean attached;
+
+        CatchUp(long coveredSeq) {
+            this.coveredSeq = coveredSeq;
+        }
+
+        /**
+         * @return frame bringing the client from coveredSeq to the latest state, if it isn't there yet
+         */
+        List<EncodedFrame> toLatest() {
+            if (coveredSeq < 0) {
+                EncodedFrame fullState = fullStateFrames.get();
+                coveredSeq = fullState.getSeq();
+                return Collections.singletonList(fullState);
+            }
+            ParkingStateStore.Snapshot state = stateStore.get();
+            if (state.getVersion() <= coveredSeq) {
+                return Collections.emptyList();
+            }
+            //every lot keeps the version it last changed in, so the changed lots are exactly the newer ones
+            Map<String, Integer> changed = new LinkedHashMap<>();
+            LotRegistry registry = stateStore.getRegistry();
+            for (int lotId = 0; lotId < registry.size(); lotId++) {
+                if (state.getLotVersion(lotId) > coveredSeq) {
+                    changed.put(registry.nameOf(lotId), state.getOccupancy(lotId));
+                }
+            }
+            coveredSeq = state.getVersion();
+            return Collections.singletonList(EncodedFrame.of(new BatchDiffUpdate(changed, coveredSeq), binaryEncoder));
+        }
+
+        @Override
+        public Iterable<EncodedFrame> apply(Published published) {
+            List<EncodedFrame> out = new ArrayList<>(2);
+            if (!attached) {
+                attached = true;
+                out.addAll(toLatest());
+            }
+            if (published == attachCheck) {
+                return out;
+            }
+            EncodedFrame frame = published.frame;
+            //the frame published before this one never reached us, it was dropped in front of the hub
+            if (frame.getSeq() >= 0 && published.baseSeq > coveredSeq) {
+                resyncs.increment();
+                out.addAll(toLatest());
+            }
+            //frames without a seq (keepalives) always pass
+            if (frame.getSeq() < 0 || frame.getSeq() > coveredSeq) {
+                out.add(frame);
+            }
+            return out;
+        }
+    }
+
+    /**
+     * a frame as it travels through the hub
+     */
+    private static final class Published {
+        private final EncodedFrame frame;
+        //1 for the first frame published, -1 for attach checks
+        private final long index;
+        //seq of the last seq carrying frame published before this one, -1 if none
+        private final long baseSeq;
+
+        Published(EncodedFrame frame, long index, long baseSeq) {
+            this.frame = frame;
+            this.index = index;
+            this.baseSeq = baseSeq;
+        }
+    }
+
+    /**
+     * counts frames the hub's input dropped, from the gaps in the publish index
+     */
+    private class DropCounter implements Procedure<Published> {
+        private long lastIndex;
+
+        @Override
+        public void apply(Published published) {
+            if (published.index > 0) {
+                droppedFrames.add(published.index - lastIndex - 1);
+                lastIndex = published.index;
+            }
+        }
+    }
+}
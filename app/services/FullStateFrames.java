@@ -0,0 +1,64 @@
+package services;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import models.BatchDiffUpdate;
+import models.BinaryFrameEncoder;
+import models.EncodedFrame;
+import models.FullStateUpdate;
+import models.LotRegistry;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The FullStateUpdate frame every new websocket connection starts with, encoded once per
+ * version of the parkingStateStore and shared by every connection (and every thread) after that;
+ * plus frames with the latest state of just some lots
+ */
+@Singleton
+public class FullStateFrames {
+    private final ParkingStateStore stateStore;
+    private final BinaryFrameEncoder binaryEncoder;
+    private volatile EncodedFrame current;
+
+    @Inject
+    public FullStateFrames(ParkingStateStore stateStore, BinaryFrameEncoder binaryEncoder) {
+        this.stateStore = stateStore;
+        this.binaryEncoder = binaryEncoder;
+    }
+
+    /**
+     * @return frame holding the latest state, its seq is the state version it encodes
+     */
+    public EncodedFrame get() {
+        ParkingStateStore.Snapshot state = stateStore.get();
+        EncodedFrame frame = current;
+        if (frame == null || frame.getSeq() != state.getVersion()) {
+            //racing callers may encode the same version twice, which is harmless
+            frame = EncodedFrame.of(
+                    new FullStateUpdate(state.getLots(), state.getVersion(), stateStore.getEpoch()), binaryEncoder);
+            current = frame;
+        }
+        return frame;
+    }
+
+    /**
+     * @param lots names of lots, null for every lot
+     * @return BatchDiffUpdate with the latest occupancy of just those lots (unknown lots are skipped),
+     * e.g. for a client that just subscribed to them and may have missed updates until now
+     */
+    public EncodedFrame latestOf(Collection<String> lots) {
+        ParkingStateStore.Snapshot state = stateStore.get();
+        Map<String, Integer> occupancies = new LinkedHashMap<>();
+        LotRegistry registry = stateStore.getRegistry();
+        for (int lotId = 0; lotId < registry.size(); lotId++) {
+            String lotName = registry.nameOf(lotId);
+            if (lots == null || lots.contains(lotName)) {
+                occupancies.put(lotName, state.getOccupancy(lotId));
+            }
+        }
+        return EncodedFrame.of(new BatchDiffUpdate(occupancies, state.getVersion()), binaryEncoder);
+    }
+}
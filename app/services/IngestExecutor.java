@@ -0,0 +1,83 @@
+package services;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import models.CustomConfiguration;
+import play.inject.ApplicationLifecycle;
+import utils.LatencyTimer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Bulkhead for the redis writes of sensor update requests
+ * <p>
+ * updates run on a small pool of their own, with a bounded queue in front of it, so a burst of
+ * posts or a slow redis can only ever tie up these threads, never play's request threads that
+ * serve reads (health, status, websockets). once the queue is full, new updates are rejected
+ * right away instead of piling up, and the sensor is told to retry later
+ */
+@Singleton
+public class IngestExecutor {
+    private final ThreadPoolExecutor executor;
+    private final LatencyTimer queueWaitTimer;
+    private final LatencyTimer executionTimer;
+    private final LongAdder rejected;
+
+    @Inject
+    public IngestExecutor(CustomConfiguration configuration,
+                          MetricsRegistry metrics,
+                          ApplicationLifecycle lifecycle) {
+        int threads = configuration.getIngestThreads();
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(configuration.getIngestQueueSize()),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "redis-ingest-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+
+        this.queueWaitTimer = metrics.timer("ingest_queue_wait");
+        this.executionTimer = metrics.timer("ingest_execution");
+        this.rejected = metrics.counter("ingest_rejected_total");
+        metrics.gauge("ingest_queue_depth", () -> executor.getQueue().size());
+        metrics.gauge("ingest_active", executor::getActiveCount);
+
+        lifecycle.addStopHook(() -> {
+            executor.shutdown();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * @param work blocking redis work
+     * @return result of the work, completed on one of the ingest threads
+     * @throws RejectedExecutionException right away if the queue is full
+     */
+    public <T> CompletionStage<T> supply(Supplier<T> work) {
+        long submitted = System.nanoTime();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                long start = System.nanoTime();
+                queueWaitTimer.record(start - submitted);
+                try {
+                    return work.get();
+                } finally {
+                    executionTimer.recordSince(start);
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+    }
+}
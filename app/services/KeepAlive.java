@@ -1,37 +1,137 @@
 package services;
 
-import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
+import akka.stream.javadsl.SourceQueueWithComplete;
 import com.google.inject.Inject;
-import com.google.inject.name.Named;
+import com.google.inject.Singleton;
+import models.BinaryFrameEncoder;
+import models.CustomConfiguration;
+import models.EncodedFrame;
 import models.KeepAliveMessage;
-import utils.ExceptionUtils;
+import play.inject.ApplicationLifecycle;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+import utils.HashedTimingWheel;
 
-import java.util.logging.Logger;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * Created by brianzhao on 2/12/17.
+ * Sends keepalives to connections that have been idle for a whole keepalive interval
+ * <p>
+ * every connection registers when its outbound stage starts (see OutboundBuffers), and notes
+ * whenever a frame goes out to its client; it's then due one interval after its last frame.
+ * due times are kept in a HashedTimingWheel advanced by the scheduler, so a tick only touches
+ * the connections due around then. a due connection that has sent something in the meantime
+ * is just pushed back to one interval after that, so busy connections never get a keepalive
  */
-public class KeepAlive implements Runnable {
-    private final Logger logger;
-    private final ActorRef clientManager;
+@Singleton
+public class KeepAlive {
+    private static final int WHEEL_SIZE = 64;
+    private static final int TICKS_PER_INTERVAL = 20;
+
+    private final long intervalNanos;
+    private final EncodedFrame keepAliveFrame;
+    private final HashedTimingWheel<Connection> wheel;
+    //registered from stream threads, moved into the wheel on the next tick
+    private final Queue<Connection> registrations = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final Cancellable schedule;
+
+    private final LongAdder sent;
+    private final LongAdder skipped;
 
     @Inject
-    public KeepAlive(Logger logger,
-                     @Named("clientManagerActor") ActorRef clientManager) {
-        this.logger = logger;
-        this.clientManager = clientManager;
+    public KeepAlive(CustomConfiguration configuration,
+                     BinaryFrameEncoder binaryEncoder,
+                     ActorSystem actorSystem,
+                     MetricsRegistry metrics,
+                     ApplicationLifecycle lifecycle) {
+        long intervalMillis = configuration.getKeepAliveIntervalMillis();
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.keepAliveFrame = EncodedFrame.of(new KeepAliveMessage(), binaryEncoder);
+        long tickMillis = Math.max(10, intervalMillis / TICKS_PER_INTERVAL);
+        this.wheel = new HashedTimingWheel<>(WHEEL_SIZE, TimeUnit.MILLISECONDS.toNanos(tickMillis), System.nanoTime());
+
+        this.sent = metrics.counter("keepalive_sent_total");
+        this.skipped = metrics.counter("keepalive_skipped_total");
+        metrics.gauge("keepalive_connections", connections::get);
+
+        FiniteDuration tick = Duration.create(tickMillis, TimeUnit.MILLISECONDS);
+        this.schedule = actorSystem.scheduler().schedule(tick, tick, this::tick, actorSystem.dispatcher());
+        lifecycle.addStopHook(() -> {
+            schedule.cancel();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * @param out where keepalive frames for the connection are offered to
+     * @return handle the connection reports its outbound frames and its end to
+     */
+    public Connection register(SourceQueueWithComplete<EncodedFrame> out) {
+        Connection connection = new Connection(out);
+        connections.incrementAndGet();
+        registrations.add(connection);
+        return connection;
+    }
+
+    /**
+     * the connection is dropped from the wheel on its next due time
+     */
+    public void deregister(Connection connection) {
+        if (!connection.closed) {
+            connection.closed = true;
+            connections.decrementAndGet();
+        }
     }
 
-    @Override
-    public void run() {
-        while (true) {
-            try {
-                Thread.sleep(5000);
-                clientManager.tell(new KeepAliveMessage(),ActorRef.noSender());
-            } catch (InterruptedException e) {
-                logger.severe(ExceptionUtils.getStackTrace(e));
-            }
+    //the scheduler may run a late tick while the previous one is still going
+    private synchronized void tick() {
+        Connection registered;
+        while ((registered = registrations.poll()) != null) {
+            wheel.schedule(registered, registered.lastSentNanos + intervalNanos);
         }
+        wheel.advance(System.nanoTime(), this::due);
+    }
+
+    private void due(Connection connection) {
+        if (connection.closed) {
+            return;
+        }
+        long now = System.nanoTime();
+        long lastSent = connection.lastSentNanos;
+        if (now - lastSent < intervalNanos) {
+            skipped.increment();
+            wheel.schedule(connection, lastSent + intervalNanos);
+            return;
+        }
+        //the queue drops its head when full, so this never waits on a backed up connection
+        connection.out.offer(keepAliveFrame);
+        connection.lastSentNanos = now;
+        sent.increment();
+        wheel.schedule(connection, now + intervalNanos);
+    }
 
+    public static final class Connection {
+        private final SourceQueueWithComplete<EncodedFrame> out;
+        private volatile long lastSentNanos = System.nanoTime();
+        private volatile boolean closed;
+
+        private Connection(SourceQueueWithComplete<EncodedFrame> out) {
+            this.out = out;
+        }
+
+        /**
+         * a frame just went out to the client, it doesn't need a keepalive for another interval
+         */
+        public void sent() {
+            lastSentNanos = System.nanoTime();
+        }
     }
 }
@@ -0,0 +1,140 @@
+package services;
+
+import com.google.inject.Singleton;
+import utils.LatencyHistogram;
+import utils.LatencyTimer;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Holds all named counters, gauges, timers and histograms of this backend
+ * <p>
+ * components look up their metrics once (e.g. in their constructor) and keep the reference,
+ * so recording on the hot path is just a striped adder update, no map lookup or locking;
+ * all formatting happens when metrics are scraped, either as json (snapshot) or in the
+ * prometheus text format (prometheusText)
+ * <p>
+ * jvm memory, gc and thread gauges are registered up front
+ */
+@Singleton
+public class MetricsRegistry {
+    public static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LatencyTimer> timers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    public MetricsRegistry() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        gauge("jvm_memory_heap_used_bytes", () -> memory.getHeapMemoryUsage().getUsed());
+        gauge("jvm_memory_heap_committed_bytes", () -> memory.getHeapMemoryUsage().getCommitted());
+        gauge("jvm_memory_heap_max_bytes", () -> memory.getHeapMemoryUsage().getMax());
+        gauge("jvm_memory_nonheap_used_bytes", () -> memory.getNonHeapMemoryUsage().getUsed());
+        List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        gauge("jvm_gc_collections", () -> collectors.stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionCount).filter(count -> count > 0).sum());
+        gauge("jvm_gc_collection_millis", () -> collectors.stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionTime).filter(millis -> millis > 0).sum());
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        gauge("jvm_threads_live", threads::getThreadCount);
+    }
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, ignored -> new LongAdder());
+    }
+
+    public LatencyTimer timer(String name) {
+        return timers.computeIfAbsent(name, ignored -> new LatencyTimer());
+    }
+
+    /**
+     * registers a value that is read whenever metrics are reported, replacing any gauge of the same name
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * registers a histogram its owner records into, replacing any histogram of the same name
+     */
+    public void histogram(String name, LatencyHistogram histogram) {
+        histograms.put(name, histogram);
+    }
+
+    /**
+     * @return current value of every metric, sorted by name
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> result = new TreeMap<>();
+        counters.forEach((name, counter) -> result.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> result.put(name, gauge.getAsLong()));
+        timers.forEach((name, timer) -> {
+            Map<String, Object> stats = new TreeMap<>();
+            stats.put("count", timer.getCount());
+            stats.put("meanMillis", timer.getMeanMillis());
+            stats.put("maxMillis", timer.getMaxMillis());
+            result.put(name, stats);
+        });
+        histograms.forEach((name, histogram) -> result.put(name, histogram.summary()));
+        return result;
+    }
+
+    /**
+     * @return every metric in the prometheus text exposition format, sorted by name;
+     * timers become a summary in seconds (count and sum) plus a max gauge,
+     * histograms a summary with the usual quantiles
+     */
+    public String prometheusText() {
+        StringBuilder text = new StringBuilder(4096);
+        new TreeMap<>(counters).forEach((name, counter) -> {
+            type(text, name, "counter");
+            sample(text, name, "", counter.sum());
+        });
+        new TreeMap<>(gauges).forEach((name, gauge) -> {
+            type(text, name, "gauge");
+            sample(text, name, "", gauge.getAsLong());
+        });
+        new TreeMap<>(timers).forEach((name, timer) -> {
+            String seconds = name + "_seconds";
+            type(text, seconds, "summary");
+            sample(text, seconds + "_count", "", timer.getCount());
+            sample(text, seconds + "_sum", "", timer.getTotalMillis() / 1000);
+            type(text, seconds + "_max", "gauge");
+            sample(text, seconds + "_max", "", timer.getMaxMillis() / 1000);
+        });
+        new TreeMap<>(histograms).forEach((name, histogram) -> {
+            String seconds = name + "_seconds";
+            type(text, seconds, "summary");
+            for (double quantile : QUANTILES) {
+                sample(text, seconds, "{quantile=\"" + quantile + "\"}",
+                        histogram.getValueAtPercentile(quantile * 100) / 1e6);
+            }
+            sample(text, seconds + "_count", "", histogram.getCount());
+        });
+        return text.toString();
+    }
+
+    private static void type(StringBuilder text, String name, String type) {
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder text, String name, String labels, long value) {
+        text.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder text, String name, String labels, double value) {
+        text.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+}
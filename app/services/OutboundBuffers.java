@@ -0,0 +1,167 @@
+package services;
+
+import akka.NotUsed;
+import akka.stream.BufferOverflowException;
+import akka.stream.OverflowStrategy;
+import akka.stream.javadsl.Flow;
+import akka.stream.javadsl.Source;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import models.CustomConfiguration;
+import models.EncodedFrame;
+import models.PendingFrames;
+import models.UpdateStamp;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Builds the outbound stage every websocket connection writes through
+ * <p>
+ * as long as the client keeps up, frames pass straight through; once it pushes back,
+ * frames are conflated into PendingFrames (latest frame per lot), so a slow client
+ * gets the latest occupancy once it catches up, instead of queued or dropped stale ones.
+ * a client that stays backed up for longer than broadcast.maxbackedupmillis is disconnected,
+ * it can reconnect and resume from its last seq
+ * <p>
+ * keepalives are merged in here too, so they are only sent to connections that have
+ * been idle for a whole keepalive interval (see KeepAlive)
+ * <p>
+ * every connection (actor or hub) passes through here, so this is also where open connections
+ * and connections failed by an overflowing upstream buffer are counted, and where deliveries are timed
+ */
+@Singleton
+public class OutboundBuffers {
+    //every how many-th connection has its deliveries timed, see UpdateLatencies
+    private static final int DELIVERY_SAMPLING = 16;
+
+    private final long maxBackedUpNanos;
+    private final KeepAlive keepAlive;
+    private final UpdateLatencies updateLatencies;
+    //frames currently pending, per live connection
+    private final Set<AtomicInteger> depths = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger connectionsBuilt = new AtomicInteger();
+    private final LongAdder pendingFrames = new LongAdder();
+    private final LongAdder conflatedFrames;
+    private final LongAdder slowClientsDisconnected;
+    private final LongAdder bufferOverflows;
+
+    @Inject
+    public OutboundBuffers(CustomConfiguration configuration,
+                           KeepAlive keepAlive,
+                           UpdateLatencies updateLatencies,
+                           MetricsRegistry metrics) {
+        this.maxBackedUpNanos = TimeUnit.MILLISECONDS.toNanos(configuration.getMaxBackedUpMillis());
+        this.keepAlive = keepAlive;
+        this.updateLatencies = updateLatencies;
+        this.conflatedFrames = metrics.counter("ws_outbound_conflated_frames_total");
+        this.slowClientsDisconnected = metrics.counter("ws_slow_clients_disconnected_total");
+        this.bufferOverflows = metrics.counter("ws_outbound_buffer_overflows_total");
+        metrics.gauge("ws_connections_open", depths::size);
+        metrics.gauge("ws_outbound_pending_frames", pendingFrames::sum);
+        metrics.gauge("ws_outbound_max_pending_frames", () -> {
+            int max = 0;
+            for (AtomicInteger depth : depths) {
+                max = Math.max(max, depth.get());
+            }
+            return max;
+        });
+        metrics.gauge("ws_outbound_backed_up_connections", () -> {
+            int backedUp = 0;
+            for (AtomicInteger depth : depths) {
+                if (depth.get() > 0) {
+                    backedUp++;
+                }
+            }
+            return backedUp;
+        });
+    }
+
+    /**
+     * @return a new conflating stage, to be materialized exactly once, for a single connection
+     */
+    public Flow<EncodedFrame, EncodedFrame, NotUsed> perConnection() {
+        AtomicInteger depth = new AtomicInteger();
+        //the first connection is always timed, so there are samples even with only a few clients
+        boolean timed = connectionsBuilt.getAndIncrement() % DELIVERY_SAMPLING == 0;
+        AtomicReference<KeepAlive.Connection> heartbeat = new AtomicReference<>();
+        //a queue rather than an actorRef source: it is just a stage fused into the connection's stream,
+        //so keepalives don't cost another actor per socket
+        Source<EncodedFrame, NotUsed> keepAlives = Source.<EncodedFrame>queue(1, OverflowStrategy.dropHead())
+                .mapMaterializedValue(out -> {
+                    heartbeat.set(keepAlive.register(out));
+                    return NotUsed.getInstance();
+                });
+        return Flow.<EncodedFrame>create()
+                //eager, keepalives never complete by themselves, the connection ends when its frames do
+                .merge(keepAlives, true)
+                .conflateWithSeed(
+                        frame -> add(new PendingFrames(System.nanoTime()), frame, depth),
+                        (pending, frame) -> add(pending, frame, depth))
+                .mapConcat(pending -> drain(pending, depth, heartbeat.get(), timed))
+                .watchTermination((notUsed, termination) -> {
+                    //runs on materialization, a flow built for an upgrade that was aborted is never counted
+                    depths.add(depth);
+                    termination.whenComplete((done, failure) -> {
+                        //the source.actorRef a clientActor writes to fails the stream when its buffer overflows
+                        if (failure instanceof BufferOverflowException) {
+                            bufferOverflows.increment();
+                        }
+                        depths.remove(depth);
+                        pendingFrames.add(-depth.getAndSet(0));
+                        KeepAlive.Connection connection = heartbeat.get();
+                        if (connection != null) {
+                            keepAlive.deregister(connection);
+                        }
+                    });
+                    return notUsed;
+                });
+    }
+
+    private PendingFrames add(PendingFrames pending, EncodedFrame frame, AtomicInteger depth) {
+        if (System.nanoTime() - pending.getSinceNanos() > maxBackedUpNanos) {
+            slowClientsDisconnected.increment();
+            throw new SlowClientException(TimeUnit.NANOSECONDS.toMillis(maxBackedUpNanos));
+        }
+        int before = pending.size();
+        pending.add(frame);
+        int added = pending.size() - before;
+        //every frame that didn't end up as a frame of its own was merged into (or replaced) another
+        conflatedFrames.add(1 - added);
+        depth.addAndGet(added);
+        pendingFrames.add(added);
+        return pending;
+    }
+
+    private List<EncodedFrame> drain(PendingFrames pending, AtomicInteger depth, KeepAlive.Connection heartbeat,
+                                     boolean timed) {
+        List<EncodedFrame> frames = pending.drain();
+        if (heartbeat != null) {
+            heartbeat.sent();
+        }
+        //this is as close to the socket as we get, frames are written out as soon as they leave here
+        for (int i = 0; timed && i < frames.size(); i++) {
+            UpdateStamp stamp = frames.get(i).getStamp();
+            if (stamp != null) {
+                updateLatencies.delivered(stamp);
+            }
+        }
+        depth.addAndGet(-frames.size());
+        pendingFrames.add(-frames.size());
+        return frames;
+    }
+
+    /**
+     * fails the websocket stream of a client that couldn't keep up
+     */
+    public static class SlowClientException extends RuntimeException {
+        public SlowClientException(long maxBackedUpMillis) {
+            super(String.format("client backed up for more than %d ms", maxBackedUpMillis));
+        }
+    }
+}
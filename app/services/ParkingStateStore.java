@@ -0,0 +1,223 @@
+package services;
+
+import annotations.AllParkingState;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import models.LotRegistry;
+import models.ParkingLot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the latest known state of all parking lots as an immutable, versioned snapshot
+ * <p>
+ * any thread can read the current snapshot without locking or asking an actor;
+ * updates copy the snapshot, change it, and atomically swap it in (copy-on-write).
+ * every update that actually changes something bumps the global version,
+ * and each changed lot remembers the version it last changed in
+ * <p>
+ * a snapshot is just an occupancy and a version per lot, in primitive arrays indexed by lot id
+ * (see LotRegistry), so changing one lot copies two small arrays rather than a map of ParkingLots;
+ * the ParkingLot view by name is only built for snapshots someone asks it of
+ * <p>
+ * clientManager is the only writer in practice, which keeps updates for a lot in order
+ */
+@Singleton
+public class ParkingStateStore {
+    //versions only mean something within one run of one server, this tells runs apart
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+    private final LotRegistry registry;
+    private final AtomicReference<Snapshot> current;
+
+    @Inject
+    public ParkingStateStore(LotRegistry registry, @AllParkingState Map<String, ParkingLot> initialState) {
+        this.registry = registry;
+        int[] occupancies = new int[registry.size()];
+        for (int id = 0; id < occupancies.length; id++) {
+            ParkingLot lot = initialState.get(registry.nameOf(id));
+            occupancies[id] = lot == null ? 0 : lot.getOccupancy();
+        }
+        this.current = new AtomicReference<>(new Snapshot(registry, 0, occupancies, new long[occupancies.length]));
+    }
+
+    /**
+     * store of exactly the given lots, with ids in the map's iteration order
+     */
+    public ParkingStateStore(Map<String, ParkingLot> initialState) {
+        this(new LotRegistry(new ArrayList<>(initialState.values()), ""), initialState);
+    }
+
+    /**
+     * @return identifier of this store instance, versions from a different epoch can't be compared
+     */
+    public String getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * @return the lots this store holds, and their ids
+     */
+    public LotRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * @return latest snapshot, wait-free
+     */
+    public Snapshot get() {
+        return current.get();
+    }
+
+    /**
+     * @return snapshot after the update, the same instance as before if nothing changed
+     */
+    public Snapshot setOccupancy(String lotName, int occupancy) {
+        int lotId = registry.idOf(lotName);
+        return lotId == LotRegistry.UNKNOWN ? current.get() : setOccupancy(lotId, occupancy);
+    }
+
+    /**
+     * @param lotId id of the lot in the registry
+     * @return snapshot after the update, the same instance as before if nothing changed
+     */
+    public Snapshot setOccupancy(int lotId, int occupancy) {
+        while (true) {
+            Snapshot old = current.get();
+            Snapshot updated = old.withOccupancy(lotId, occupancy);
+            if (updated == old || current.compareAndSet(old, updated)) {
+                return updated;
+            }
+        }
+    }
+
+    /**
+     * sets the occupancy of several lots in one new snapshot; lots not in our config are ignored
+     *
+     * @param occupancies map of lot name to its new occupancy
+     * @return snapshot after the update, the same instance as before if nothing changed
+     */
+    public Snapshot setOccupancies(Map<String, Integer> occupancies) {
+        return setOccupancies(occupancies, Long.MAX_VALUE);
+    }
+
+    /**
+     * like setOccupancies(occupancies), for values read from elsewhere (redis) while updates kept coming in:
+     * a lot that changed after the read started already has a newer value than the one read, and is left alone
+     *
+     * @param occupancies map of lot name to its new occupancy
+     * @param readVersion global version of the snapshot taken right before the occupancies were read
+     * @return snapshot after the update, the same instance as before if nothing changed
+     */
+    public Snapshot setOccupancies(Map<String, Integer> occupancies, long readVersion) {
+        while (true) {
+            Snapshot old = current.get();
+            Snapshot updated = old.withOccupancies(occupancies, readVersion);
+            if (updated == old || current.compareAndSet(old, updated)) {
+                return updated;
+            }
+        }
+    }
+
+    public static final class Snapshot {
+        private final LotRegistry registry;
+        private final long version;
+        //by lot id, never modified once the snapshot is published
+        private final int[] occupancies;
+        private final long[] lotVersions;
+        //built on first use, racing readers may both build it, which is harmless
+        private volatile Map<String, ParkingLot> lots;
+
+        private Snapshot(LotRegistry registry, long version, int[] occupancies, long[] lotVersions) {
+            this.registry = registry;
+            this.version = version;
+            this.occupancies = occupancies;
+            this.lotVersions = lotVersions;
+        }
+
+        private Snapshot withOccupancy(int lotId, int occupancy) {
+            if (occupancies[lotId] == occupancy) {
+                return this;
+            }
+            long nextVersion = version + 1;
+            int[] updatedOccupancies = occupancies.clone();
+            long[] updatedVersions = lotVersions.clone();
+            updatedOccupancies[lotId] = occupancy;
+            updatedVersions[lotId] = nextVersion;
+            return new Snapshot(registry, nextVersion, updatedOccupancies, updatedVersions);
+        }
+
+        private Snapshot withOccupancies(Map<String, Integer> occupancies, long readVersion) {
+            long nextVersion = version + 1;
+            int[] updatedOccupancies = null;
+            long[] updatedVersions = null;
+            for (Map.Entry<String, Integer> entry : occupancies.entrySet()) {
+                int lotId = registry.idOf(entry.getKey());
+                if (lotId == LotRegistry.UNKNOWN || this.occupancies[lotId] == entry.getValue()
+                        || lotVersions[lotId] > readVersion) {
+                    continue;
+                }
+                if (updatedOccupancies == null) {
+                    updatedOccupancies = this.occupancies.clone();
+                    updatedVersions = lotVersions.clone();
+                }
+                updatedOccupancies[lotId] = entry.getValue();
+                updatedVersions[lotId] = nextVersion;
+            }
+            return updatedOccupancies == null ? this
+                    : new Snapshot(registry, nextVersion, updatedOccupancies, updatedVersions);
+        }
+
+        /**
+         * @return global version, incremented by every change to any lot
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return occupancy of the lot with that id
+         */
+        public int getOccupancy(int lotId) {
+            return occupancies[lotId];
+        }
+
+        /**
+         * @return version in which the lot with that id last changed
+         */
+        public long getLotVersion(int lotId) {
+            return lotVersions[lotId];
+        }
+
+        /**
+         * @return unmodifiable map of lot name to lot, in lot id order
+         */
+        public Map<String, ParkingLot> getLots() {
+            Map<String, ParkingLot> view = lots;
+            if (view == null) {
+                Map<String, ParkingLot> built = new LinkedHashMap<>();
+                for (int id = 0; id < occupancies.length; id++) {
+                    built.put(registry.nameOf(id), lotOf(id));
+                }
+                view = Collections.unmodifiableMap(built);
+                lots = view;
+            }
+            return view;
+        }
+
+        /**
+         * @return the lot, or null if there is no lot with that name in our config
+         */
+        public ParkingLot getLot(String lotName) {
+            return getLots().get(lotName);
+        }
+
+        private ParkingLot lotOf(int lotId) {
+            return new ParkingLot(registry.nameOf(lotId), occupancies[lotId],
+                    registry.maxCapacityOf(lotId), lotVersions[lotId]);
+        }
+    }
+}
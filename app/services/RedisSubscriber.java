@@ -1,85 +1,295 @@
 package services;
 
+import actors.messages.*;
 import akka.actor.ActorRef;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import models.CustomConfiguration;
+import models.LotRegistry;
+import play.inject.ApplicationLifecycle;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPubSub;
-import actors.messages.*;
+import utils.LatencyTimer;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Infinitely blocking thread waiting for redis messages
+ * Blocking loop waiting for redis messages, run on its own thread (see start())
+ * <p>
+ * whenever the subscription drops, it is re-established with exponential backoff;
+ * once redis confirms a (re)subscription, all lots are read back in one pipelined round trip
+ * and sent to clientManager as a RefreshState, since notifications sent while we were
+ * disconnected are lost for good
+ * <p>
+ * in script update mode every notification carries the global update seq, so a skipped
+ * seq means we missed a notification while still connected; that triggers the same resync
+ * <p>
+ * a notification is turned into a NewLotState without allocating: the channel is looked up
+ * as a whole in the LotRegistry, and the numbers are parsed straight out of the message
  */
 @Singleton
-public class RedisSubscriber extends JedisPubSub implements Runnable {
-    private Logger logger;
-    private Jedis jedis;
-    private CustomConfiguration configuration;
-    private ActorRef clientManager;
+public class RedisSubscriber implements Runnable {
+    private final Logger logger;
+    private final JedisPool jedisPool;
+    private final CustomConfiguration configuration;
+    private final ActorRef clientManager;
+    private final RedisUpdater redisUpdater;
+    private final LotRegistry registry;
+    private final ParkingStateStore stateStore;
+    private final UpdateLatencies updateLatencies;
+    private final boolean scriptUpdateMode;
+    private final long minBackoffMillis;
+    private final long maxBackoffMillis;
+
+    private volatile boolean running = true;
+    private volatile Listener listener;
+    private volatile boolean connected;
+    private volatile long lastMessageMillis = System.currentTimeMillis();
+    //only touched by the subscriber thread
+    private long lastSeq = -1;
+
+    private final LongAdder messages;
+    private final LongAdder reconnects;
+    private final LongAdder gaps;
+    private final LatencyTimer resyncTimer;
 
     @Inject
     public RedisSubscriber(Logger logger,
                            JedisPool jedisPool,
                            CustomConfiguration configuration,
-                           @Named("clientManagerActor") ActorRef clientManager) {
+                           @Named("clientManagerActor") ActorRef clientManager,
+                           RedisUpdater redisUpdater,
+                           LotRegistry registry,
+                           ParkingStateStore stateStore,
+                           UpdateLatencies updateLatencies,
+                           MetricsRegistry metrics,
+                           ApplicationLifecycle lifecycle) {
         this.logger = logger;
-        this.jedis = jedisPool.getResource();
+        this.jedisPool = jedisPool;
         this.configuration = configuration;
         this.clientManager = clientManager;
+        this.redisUpdater = redisUpdater;
+        this.registry = registry;
+        this.stateStore = stateStore;
+        this.updateLatencies = updateLatencies;
+        this.scriptUpdateMode = configuration.isScriptUpdateMode();
+        this.minBackoffMillis = configuration.getSubscriberMinBackoffMillis();
+        this.maxBackoffMillis = Math.max(minBackoffMillis, configuration.getSubscriberMaxBackoffMillis());
+
+        this.messages = metrics.counter("redis_subscriber_messages_total");
+        this.reconnects = metrics.counter("redis_subscriber_reconnects_total");
+        this.gaps = metrics.counter("redis_subscriber_gaps_total");
+        this.resyncTimer = metrics.timer("redis_subscriber_resync");
+        metrics.gauge("redis_subscriber_connected", () -> connected ? 1 : 0);
+        metrics.gauge("redis_subscriber_last_message_age_millis",
+                () -> System.currentTimeMillis() - lastMessageMillis);
+
+        lifecycle.addStopHook(() -> {
+            stop();
+            return CompletableFuture.completedFuture(null);
+        });
     }
 
-    @Override
-    public void onMessage(String channel, String message) {
-        logger.info(String.format("Message: channel: %s, message: %s",channel,message));
+    /**
+     * starts subscribing on a dedicated daemon thread, so the blocking subscription
+     * never holds on to a dispatcher thread
+     */
+    public void start() {
+        Thread thread = new Thread(this, "redis-subscriber");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     /**
-     * this is called whenever an update occurred to any cpp parking lot key in redis
-     * all of the other callbacks aren't useful to us
-     * @param channel
-     * @param message
+     * @return true while the subscription to redis is established
      */
-    @Override
-    public void onPMessage(String pattern, String channel, String message) {
-        logger.info(String.format("Message from: pattern: %s, channel: %s, message: %s",
-                pattern, channel, message));
-        String lotName = channel.replace(configuration.getRedisPatternChannelsPrefix(), "");
-        clientManager.tell(new NewLotState(lotName), ActorRef.noSender());
+    public boolean isConnected() {
+        return connected;
     }
 
-    @Override
-    public void onSubscribe(String channel, int subscribedChannels) {
-        logger.info(String.format("Subscription: channel: %s, subscribedChannels: %s", channel, subscribedChannels));
+    public void stop() {
+        running = false;
+        Listener current = listener;
+        if (current != null && current.isSubscribed()) {
+            current.punsubscribe();
+        }
     }
 
     @Override
-    public void onUnsubscribe(String channel, int subscribedChannels) {
-        logger.info(String.format("Unsubscribe: channel: %s, subscribedChannels: %s", channel, subscribedChannels));
+    public void run() {
+        long backoffMillis = minBackoffMillis;
+        while (running) {
+            //jedis' pubsub isn't meant to be reused after its connection broke, use a fresh one every time
+            Listener current = new Listener();
+            listener = current;
+            Jedis jedis = null;
+            try {
+                jedis = jedisPool.getResource();
+                jedis.psubscribe(current, configuration.getRedisPatternChannelsWildcard());
+            } catch (Exception e) {
+                logger.warning(String.format("Redis subscription lost: %s", e));
+            } finally {
+                connected = false;
+                //with jedis 2.4 close() only disconnects and the pool never gets its slot back;
+                //a connection that was subscribed can't be reused anyway, so it's handed back as broken
+                if (jedis != null) {
+                    jedisPool.returnBrokenResource(jedis);
+                }
+            }
+            if (!running) {
+                break;
+            }
+            if (current.hasSubscribed) {
+                backoffMillis = minBackoffMillis;
+            }
+            reconnects.increment();
+            //full jitter, so a fleet of backends doesn't reconnect in lockstep after a redis restart
+            long sleepMillis = ThreadLocalRandom.current().nextLong(backoffMillis / 2, backoffMillis + 1);
+            logger.warning(String.format("Resubscribing to redis in %d ms", sleepMillis));
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            backoffMillis = Math.min(backoffMillis * 2, maxBackoffMillis);
+        }
+        logger.info("Redis subscriber stopped");
     }
 
-    @Override
-    public void onPUnsubscribe(String pattern, int subscribedChannels) {
-        logger.info(String.format("Pattern Unsubscribe: pattern: %s, subscribedChannels: %s", pattern, subscribedChannels));
+    /**
+     * reads every lot back from redis and hands the result to clientManager,
+     * which broadcasts whatever differs from what we have
+     */
+    private void resync() {
+        long start = System.nanoTime();
+        //notifications arriving while we read are newer than what we read, clientManager keeps those lots
+        long readVersion = stateStore.get().getVersion();
+        redisUpdater.getAllLotOccupancyAsync().whenComplete((latestOccupancy, failure) -> {
+            resyncTimer.recordSince(start);
+            if (failure != null) {
+                logger.warning(String.format("Resync after subscribing failed: %s", failure));
+            } else {
+                clientManager.tell(new RefreshState(latestOccupancy, readVersion), ActorRef.noSender());
+            }
+        });
     }
 
-    @Override
-    public void onPSubscribe(String pattern, int subscribedChannels) {
-        logger.info(String.format("Pattern Subscription: pattern: %s, subscribedChannels: %s", pattern, subscribedChannels));
+    /**
+     * this is called whenever an update occurred to any cpp parking lot key in redis
+     * <p>
+     * in script update mode, message is "occupancy:seq:stamp" of the lot (older scripts leave out
+     * the stamp, or the seq and the stamp), in keyspace mode it's just the name of the redis command
+     */
+    private void onLotNotification(String channel, String message) {
+        long receivedNanos = System.nanoTime();
+        messages.increment();
+        lastMessageMillis = System.currentTimeMillis();
+        int lotId = registry.idOfChannel(channel);
+        if (lotId == LotRegistry.UNKNOWN) {
+            logger.warning(String.format("Update on channel %s for a lot which is not in local config", channel));
+            return;
+        }
+        if (!scriptUpdateMode) {
+            clientManager.tell(new NewLotState(lotId, receivedNanos), ActorRef.noSender());
+            return;
+        }
+        int separator = message.indexOf(':');
+        int end = separator < 0 ? message.length() : separator;
+        long occupancy = parseNonNegative(message, 0, end);
+        if (occupancy < 0 || occupancy > Integer.MAX_VALUE) {
+            logger.warning(String.format("Malformed update on channel %s: %s", channel, message));
+            return;
+        }
+        if (separator < 0) {
+            clientManager.tell(new NewLotState(lotId, (int) occupancy, 0, receivedNanos), ActorRef.noSender());
+            return;
+        }
+        int stampSeparator = message.indexOf(':', separator + 1);
+        long ingestMillis = stampSeparator < 0 ? 0 : Math.max(0, parseNonNegative(message, stampSeparator + 1, message.length()));
+        updateLatencies.recordSinceIngest(UpdateLatencies.Stage.NOTIFY, lotId, ingestMillis);
+        clientManager.tell(new NewLotState(lotId, (int) occupancy, ingestMillis, receivedNanos), ActorRef.noSender());
+        long seq = parseNonNegative(message, separator + 1, stampSeparator < 0 ? message.length() : stampSeparator);
+        if (seq < 0) {
+            logger.warning(String.format("Malformed update seq on channel %s: %s", channel, message));
+            return;
+        }
+        if (lastSeq >= 0 && seq > lastSeq + 1) {
+            gaps.increment();
+            logger.warning(String.format("Missed %d lot notifications (seq %d to %d), resyncing",
+                    seq - lastSeq - 1, lastSeq + 1, seq - 1));
+            resync();
+        }
+        lastSeq = Math.max(lastSeq, seq);
     }
 
-    @Override
-    public void run() {
-        try {
-            jedis.psubscribe(this, configuration.getRedisPatternChannelsWildcard());
-        } finally {
-            //should never reach here since subscribe blocks forever, but anyways...
-            logger.severe("Redis subscriber about to close! Should never have gotten here!!");
-            jedis.close();
+    /**
+     * parses the decimal digits of text between from and to, without cutting them out first
+     *
+     * @return the number, -1 if the range is empty, holds anything but digits, or overflows a long
+     */
+    static long parseNonNegative(String text, int from, int to) {
+        if (from >= to) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private class Listener extends JedisPubSub {
+        private volatile boolean hasSubscribed;
+
+        @Override
+        public void onMessage(String channel, String message) {
+            logger.info(String.format("Message: channel: %s, message: %s", channel, message));
+        }
+
+        @Override
+        public void onPMessage(String pattern, String channel, String message) {
+            //one of these per lot update, don't format it unless someone is going to read it
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine(String.format("Message from: pattern: %s, channel: %s, message: %s",
+                        pattern, channel, message));
+            }
+            onLotNotification(channel, message);
+        }
+
+        @Override
+        public void onSubscribe(String channel, int subscribedChannels) {
+            logger.info(String.format("Subscription: channel: %s, subscribedChannels: %s", channel, subscribedChannels));
+        }
+
+        @Override
+        public void onUnsubscribe(String channel, int subscribedChannels) {
+            logger.info(String.format("Unsubscribe: channel: %s, subscribedChannels: %s", channel, subscribedChannels));
+        }
+
+        @Override
+        public void onPUnsubscribe(String pattern, int subscribedChannels) {
+            logger.info(String.format("Pattern Unsubscribe: pattern: %s, subscribedChannels: %s", pattern, subscribedChannels));
+        }
+
+        @Override
+        public void onPSubscribe(String pattern, int subscribedChannels) {
+            logger.info(String.format("Pattern Subscription: pattern: %s, subscribedChannels: %s", pattern, subscribedChannels));
+            hasSubscribed = true;
+            connected = true;
+            //seqs published while we were away can't be told apart from a gap, start counting afresh
+            lastSeq = -1;
+            resync();
         }
     }
 }
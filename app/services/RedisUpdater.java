@@ -1,60 +1,278 @@
 package services;
 
+import akka.actor.ActorSystem;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 import models.CustomConfiguration;
-import models.ParkingLot;
+import models.LotRegistry;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.Response;
 import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisDataException;
+import utils.LatencyTimer;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.IntUnaryOperator;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 /**
  * wrapper around jedis w/convenience methods for the updates/reads we wish to perform
+ * <p>
+ * safe to share between threads: jedis connections aren't, so every operation borrows
+ * its own connection from the pool and returns it when done.
+ * the *Async variants run on the bounded "redis-dispatcher", sized to stay within the pool
+ * <p>
+ * every lot's redis key, update channel and script arguments are built once, by lot id
  */
+@Singleton
 public class RedisUpdater {
     private final Logger logger;
-    private final Jedis jedis;
+    private final JedisPool jedisPool;
+    private final Executor redisExecutor;
     private final CustomConfiguration configuration;
-    private final Set<String> validParkingLotNames;
+    //lot ids follow config order, which both sides of the digest fold in
+    private final LotRegistry registry;
+    //by lot id
+    private final String[] lotKeys;
+    private final List<String>[] updateScriptKeys;
+    private final String[] maxCapacityArgs;
+    private final String[] updateChannels;
+    private final List<String> allLotKeys;
+    private final boolean scriptUpdateMode;
+    //sha of every lua script already loaded into redis, keyed by the script itself
+    private final Map<String, String> scriptShas = new ConcurrentHashMap<>();
+    private final LatencyTimer borrowTimer;
+    private final LatencyTimer commandTimer;
+    private final LongAdder errors;
+    //the jedis play-modules-redis comes with (2.4) doesn't expose pool stats, so our own borrows are counted here
+    private final AtomicInteger borrowed = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
     private static final String REDIS_PARKING_FIELD = "occupancy";
 
+    /**
+     * KEYS[1] = lot key, KEYS[2] = global update seq,
+     * ARGV = field, increment, max capacity, channel to publish the new value on, ingest stamp
+     * increments, clamps the result to [0, maxCapacity], bumps the update seq,
+     * then publishes "occupancy:seq:stamp", all atomically
+     */
+    private static final String UPDATE_SCRIPT =
+            "local occupancy = redis.call('HINCRBY', KEYS[1], ARGV[1], ARGV[2])\n" +
+            "local maxCapacity = tonumber(ARGV[3])\n" +
+            "if occupancy < 0 then\n" +
+            "  occupancy = 0\n" +
+            "  redis.call('HSET', KEYS[1], ARGV[1], occupancy)\n" +
+            "elseif occupancy > maxCapacity then\n" +
+            "  occupancy = maxCapacity\n" +
+            "  redis.call('HSET', KEYS[1], ARGV[1], occupancy)\n" +
+            "end\n" +
+            "local seq = redis.call('INCR', KEYS[2])\n" +
+            "redis.call('PUBLISH', ARGV[4], occupancy .. ':' .. seq .. ':' .. ARGV[5])\n" +
+            "return occupancy\n";
+
+    /**
+     * KEYS = every lot key in config order, ARGV[1] = field
+     * folds all occupancies into one number, see digestOf for the java side of the same fold
+     */
+    private static final String DIGEST_SCRIPT =
+            "local digest = 0\n" +
+            "for i, key in ipairs(KEYS) do\n" +
+            "  local occupancy = tonumber(redis.call('HGET', key, ARGV[1])) or 0\n" +
+            "  digest = (digest * 31 + occupancy) % 2147483647\n" +
+            "end\n" +
+            "return digest\n";
+    private static final long DIGEST_MODULUS = 2147483647L;
+
     @Inject
-    public RedisUpdater(Logger logger, JedisPool jedisPool, CustomConfiguration configuration) {
+    public RedisUpdater(Logger logger,
+                        JedisPool jedisPool,
+                        ActorSystem actorSystem,
+                        CustomConfiguration configuration,
+                        LotRegistry registry,
+                        MetricsRegistry metrics) {
         this.logger = logger;
-        this.jedis = jedisPool.getResource();
+        this.jedisPool = jedisPool;
+        this.redisExecutor = actorSystem.dispatchers().lookup("redis-dispatcher");
         this.configuration = configuration;
-        this.validParkingLotNames = configuration.getParkingLots().stream().
-                map(ParkingLot::getName).collect(Collectors.toSet());
+        this.registry = registry;
+        int size = registry.size();
+        this.lotKeys = new String[size];
+        @SuppressWarnings("unchecked")
+        List<String>[] scriptKeys = new List[size];
+        this.updateScriptKeys = scriptKeys;
+        this.maxCapacityArgs = new String[size];
+        this.updateChannels = new String[size];
+        for (int id = 0; id < size; id++) {
+            lotKeys[id] = lotNameToKey(registry.nameOf(id));
+            updateScriptKeys[id] = Collections.unmodifiableList(
+                    Arrays.asList(lotKeys[id], configuration.getRedisUpdateSeqKey()));
+            maxCapacityArgs[id] = String.valueOf(registry.maxCapacityOf(id));
+            updateChannels[id] = configuration.getRedisOccupancyChannelsPrefix() + registry.nameOf(id);
+        }
+        this.allLotKeys = Collections.unmodifiableList(Arrays.asList(lotKeys));
+        this.scriptUpdateMode = configuration.isScriptUpdateMode();
+
+        this.borrowTimer = metrics.timer("redis_pool_borrow_wait");
+        this.commandTimer = metrics.timer("redis_command");
+        this.errors = metrics.counter("redis_errors_total");
+        metrics.gauge("redis_pool_active", borrowed::get);
+        metrics.gauge("redis_pool_waiters", waiting::get);
     }
 
     /**
      * make a HINCRBY request on lot 'lotname',
      * i.e. atomically increments 'lotname' by 'incrby'
+     * <p>
+     * in script update mode, this instead runs the update script, which also clamps
+     * the occupancy and publishes the new value to all subscribed backends
      *
-     * @param lotName name of the cpp parking lot
-     * @param incrby  amount changed
+     * @param lotName      name of the cpp parking lot
+     * @param incrby       amount changed
+     * @param ingestMillis wall clock time the update was posted, published along with it in script update mode
      */
-    public void updateParkingLotOccupancy(String lotName, int incrby) {
-        if (validParkingLotNames.contains(lotName)) {
-            jedis.hincrBy(lotNameToKey(lotName), REDIS_PARKING_FIELD, incrby);
-        } else {
+    public void updateParkingLotOccupancy(String lotName, int incrby, long ingestMillis) {
+        int lotId = registry.idOf(lotName);
+        if (lotId == LotRegistry.UNKNOWN) {
             logger.warning(String.format("Request for update on nonexistent parking lot %s:", lotName));
+        } else if (scriptUpdateMode) {
+            withJedis(jedis -> runUpdateScript(jedis, lotId, incrby, ingestMillis));
+        } else {
+            withJedis(jedis -> jedis.hincrBy(lotKeys[lotId], REDIS_PARKING_FIELD, incrby));
+        }
+    }
+
+    public CompletionStage<Void> updateParkingLotOccupancyAsync(String lotName, int incrby, long ingestMillis) {
+        return CompletableFuture.runAsync(() -> updateParkingLotOccupancy(lotName, incrby, ingestMillis), redisExecutor);
+    }
+
+    /**
+     * @return the clamped occupancy after the update
+     */
+    private int runUpdateScript(Jedis jedis, int lotId, int incrby, long ingestMillis) {
+        Object result = evalScript(jedis, UPDATE_SCRIPT, updateScriptKeys[lotId],
+                updateScriptArgs(lotId, incrby, ingestMillis));
+        return ((Long) result).intValue();
+    }
+
+    /**
+     * runs a script by its sha, (re)loading it into redis if redis doesn't know it yet
+     * (e.g. first call, or redis restarted and lost its script cache)
+     */
+    private Object evalScript(Jedis jedis, String script, List<String> keys, List<String> args) {
+        String sha = scriptShas.get(script);
+        if (sha == null) {
+            sha = jedis.scriptLoad(script);
+            scriptShas.put(script, sha);
         }
+        try {
+            return jedis.evalsha(sha, keys, args);
+        } catch (JedisDataException e) {
+            if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) {
+                throw e;
+            }
+            sha = jedis.scriptLoad(script);
+            scriptShas.put(script, sha);
+            return jedis.evalsha(sha, keys, args);
+        }
+    }
+
+    private List<String> updateScriptArgs(int lotId, int incrby, long ingestMillis) {
+        return Arrays.asList(REDIS_PARKING_FIELD, String.valueOf(incrby),
+                maxCapacityArgs[lotId], updateChannels[lotId], String.valueOf(ingestMillis));
+    }
+
+    /**
+     * applies the increments of several lots in a single redis round trip (one transaction),
+     * using the update script per lot in script update mode, HINCRBY otherwise
+     * <p>
+     * callers should merge increments per lot and check validity beforehand
+     *
+     * @param increments map of valid lot names to the amount each one changed
+     * @param ingestMillis wall clock time the oldest of the increments was posted
+     * @return map of lot names to their occupancy after the update
+     */
+    public Map<String, Integer> updateParkingLotOccupancies(Map<String, Integer> increments, long ingestMillis) {
+        return withJedis(jedis -> applyIncrements(jedis, increments, ingestMillis));
+    }
+
+    private Map<String, Integer> applyIncrements(Jedis jedis, Map<String, Integer> increments, long ingestMillis) {
+        List<Pair<String, Response<?>>> redisResponse = new ArrayList<>();
+        Map<String, Integer> result = new LinkedHashMap<>();
+
+        Transaction t = jedis.multi();
+        for (Map.Entry<String, Integer> increment : increments.entrySet()) {
+            String lotName = increment.getKey();
+            int lotId = registry.idOf(lotName);
+            if (scriptUpdateMode) {
+                //plain eval rather than evalsha, so a cold script cache can't fail half the transaction
+                redisResponse.add(new ImmutablePair<>(lotName, t.eval(UPDATE_SCRIPT,
+                        updateScriptKeys[lotId], updateScriptArgs(lotId, increment.getValue(), ingestMillis))));
+            } else {
+                redisResponse.add(new ImmutablePair<>(lotName,
+                        t.hincrBy(lotKeys[lotId], REDIS_PARKING_FIELD, increment.getValue())));
+            }
+        }
+        t.exec();
+
+        for (Pair<String, Response<?>> pair : redisResponse) {
+            result.put(pair.getLeft(), ((Long) pair.getRight().get()).intValue());
+        }
+        return result;
     }
 
     /**
      * @param lotName name of cpp parking lot
-     * @return the current amount of cars in parking lot 'lotname'
+     * @return true if the lot is one of the lots in our config
+     */
+    public boolean isValidParkingLot(String lotName) {
+        return registry.idOf(lotName) != LotRegistry.UNKNOWN;
+    }
+
+    /**
+     * @param lotId id of the cpp parking lot in the registry
+     * @return the current amount of cars in that parking lot
+     */
+    public int getParkingLotOccupancy(int lotId) {
+        return withJedis(jedis -> Integer.parseInt(
+                jedis.hmget(lotKeys[lotId], REDIS_PARKING_FIELD).get(0)));
+    }
+
+    public CompletionStage<Integer> getParkingLotOccupancyAsync(int lotId) {
+        return CompletableFuture.supplyAsync(() -> getParkingLotOccupancy(lotId), redisExecutor);
+    }
+
+    /**
+     * computes the occupancy digest of all lots inside redis, so only a single number crosses the network
+     *
+     * @return digest of the occupancies redis holds, comparable with digestOf
+     */
+    public long getOccupancyDigest() {
+        return withJedis(jedis -> (Long) evalScript(jedis, DIGEST_SCRIPT, allLotKeys,
+                Collections.singletonList(REDIS_PARKING_FIELD)));
+    }
+
+    /**
+     * same fold as the digest script, over occupancies held locally
+     *
+     * @param occupancyOf occupancy of a lot, by lot id
+     * @return digest that equals getOccupancyDigest if local and redis occupancies agree
      */
-    public int getParkingLotOccupancy(String lotName) {
-        return Integer.parseInt(
-                jedis.hmget(lotNameToKey(lotName), REDIS_PARKING_FIELD).get(0));
+    public long digestOf(IntUnaryOperator occupancyOf) {
+        long digest = 0;
+        for (int lotId = 0; lotId < lotKeys.length; lotId++) {
+            //lua's % takes the sign of the divisor, as does floorMod
+            digest = Math.floorMod(digest * 31 + occupancyOf.applyAsInt(lotId), DIGEST_MODULUS);
+        }
+        return digest;
     }
 
     /**
@@ -63,14 +281,21 @@ public class RedisUpdater {
      * @return
      */
     public Map<String, Integer> getAllLotOccupancy() {
+        return withJedis(this::readAllLotOccupancy);
+    }
+
+    public CompletionStage<Map<String, Integer>> getAllLotOccupancyAsync() {
+        return CompletableFuture.supplyAsync(this::getAllLotOccupancy, redisExecutor);
+    }
+
+    private Map<String, Integer> readAllLotOccupancy(Jedis jedis) {
         List<Pair<String, Response<List<String>>>> redisResponse = new ArrayList<>();
         Map<String, Integer> result = new HashMap<>();
 
         //redis transaction: https://github.com/xetorthio/jedis/wiki/AdvancedUsage#transactions
         Transaction t = jedis.multi();
-        for (String lotName : validParkingLotNames) {
-            String keyName = lotNameToKey(lotName);
-            redisResponse.add(new ImmutablePair<>(lotName, t.hmget(keyName, REDIS_PARKING_FIELD)));
+        for (int lotId = 0; lotId < lotKeys.length; lotId++) {
+            redisResponse.add(new ImmutablePair<>(registry.nameOf(lotId), t.hmget(lotKeys[lotId], REDIS_PARKING_FIELD)));
         }
         t.exec();
 
@@ -89,28 +314,6 @@ public class RedisUpdater {
     }
 
 
-    /**
-     * Note: this modifies the input map!!
-     *
-     * queries for all parking lot states,
-     * iterates through input map, setting each parking lot object's new occupancy
-     * <p>
-     * if we discover any keys in redis that aren't in the input map,
-     * we log the discrepancy
-     *
-     * @param oldLotStatus map of parking lot names to parking lot objects
-     */
-    public void updateParkingLots(Map<String, ParkingLot> oldLotStatus) {
-        Map<String, Integer> latestStatus = this.getAllLotOccupancy();
-        for (String lotName : latestStatus.keySet()) {
-            if (!oldLotStatus.containsKey(lotName)) {
-                logger.warning(String.format("Lotname field %s in redis hashmap not found in local config", lotName));
-            } else {
-                oldLotStatus.get(lotName).setOccupancy(latestStatus.get(lotName));
-            }
-        }
-    }
-
     /**
      * convert lotname to a key in redis by prefixing with "cpp"
      * <p>
@@ -125,10 +328,44 @@ public class RedisUpdater {
     }
 
     /**
-     * if you invoke this, all other redis queries sent by this object will then fail
-     * only call this when you no longer need this object anymore
+     * borrows a connection for the duration of one operation, recording
+     * how long we waited on the pool, how long the operation took, and whether it failed
+     * <p>
+     * with jedis 2.4 close() only disconnects, connections have to be handed back explicitly;
+     * one that failed other than by a redis error reply is handed back as broken,
+     * so the pool replaces it rather than reuse a socket in an unknown state
      */
-    public void close() {
-        this.jedis.close();
+    private <T> T withJedis(Function<Jedis, T> operation) {
+        long start = System.nanoTime();
+        Jedis jedis;
+        waiting.incrementAndGet();
+        try {
+            jedis = jedisPool.getResource();
+        } catch (RuntimeException e) {
+            errors.increment();
+            throw e;
+        } finally {
+            waiting.decrementAndGet();
+        }
+        borrowTimer.recordSince(start);
+        borrowed.incrementAndGet();
+        boolean broken = false;
+        try {
+            long commandStart = System.nanoTime();
+            T result = operation.apply(jedis);
+            commandTimer.recordSince(commandStart);
+            return result;
+        } catch (RuntimeException e) {
+            broken = !(e instanceof JedisDataException);
+            errors.increment();
+            throw e;
+        } finally {
+            borrowed.decrementAndGet();
+            if (broken) {
+                jedisPool.returnBrokenResource(jedis);
+            } else {
+                jedisPool.returnResource(jedis);
+            }
+        }
     }
 }
@@ -0,0 +1,91 @@
+package services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import play.libs.Json;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Latest state of all parking lots, already rendered to the json body of GET /lots
+ * (plus a gzipped copy of it), so polls are served without asking clientManager
+ * and without serializing anything
+ * <p>
+ * rendered once per version of the parkingStateStore, by whichever request first sees that version;
+ * rendered snapshots are immutable, so any thread can read them
+ */
+@Singleton
+public class StatusSnapshot {
+    private final ParkingStateStore stateStore;
+    private volatile Rendered current;
+
+    @Inject
+    public StatusSnapshot(ParkingStateStore stateStore) {
+        this.stateStore = stateStore;
+    }
+
+    /**
+     * @return rendered snapshot of the latest state
+     */
+    public Rendered get() {
+        ParkingStateStore.Snapshot state = stateStore.get();
+        Rendered rendered = current;
+        if (rendered == null || rendered.version != state.getVersion()) {
+            //racing requests may render the same version twice, which is harmless
+            rendered = new Rendered(state.getVersion(), '"' + stateStore.getEpoch() + "-" + state.getVersion() + '"', render(state));
+            current = rendered;
+        }
+        return rendered;
+    }
+
+    private static byte[] render(ParkingStateStore.Snapshot state) {
+        try {
+            return Json.mapper().writeValueAsBytes(state.getLots());
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    public static final class Rendered {
+        private final long version;
+        private final String etag;
+        private final byte[] json;
+        private final byte[] gzippedJson;
+
+        private Rendered(long version, String etag, byte[] json) {
+            this.version = version;
+            this.etag = etag;
+            this.json = json;
+            this.gzippedJson = gzip(json);
+        }
+
+        /**
+         * @return quoted, version-based entity tag of this snapshot
+         */
+        public String getEtag() {
+            return etag;
+        }
+
+        public byte[] getJson() {
+            return json;
+        }
+
+        public byte[] getGzippedJson() {
+            return gzippedJson;
+        }
+    }
+}
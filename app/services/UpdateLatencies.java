@@ -0,0 +1,122 @@
+package services;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import models.LotRegistry;
+import models.UpdateStamp;
+import utils.LatencyHistogram;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long a lot update takes from the sensor's POST to the frame going out on a client connection,
+ * as histograms per stage, for all lots together and per lot
+ * <p>
+ * a POST is stamped with the wall clock when it arrives; in script update mode the stamp travels
+ * through redis with the update and comes back in the notification, to whichever backend gets it.
+ * stages:
+ * <pre>
+ * ingest     POST arrived -> redis write done                     (backend the POST hit)
+ * notify     POST arrived -> notification received               (wall clock, across backends)
+ * apply      notification received -> frame broadcast            (includes redis read, coalescing)
+ * deliver    frame broadcast -> frame written to a connection    (per connection, includes backed up clients)
+ * endToEnd   POST arrived -> frame written to a connection       (wall clock, across backends)
+ * </pre>
+ * stages spanning backends assume their clocks are in sync, negative latencies count as 0
+ * <p>
+ * deliver and endToEnd happen once per connection per frame, with tens of thousands of connections
+ * that would be as many increments of the same buckets from every stream thread on each broadcast;
+ * they are only recorded for every 16th connection (see OutboundBuffers), which still covers
+ * fast and backed up clients alike, as connections are picked regardless of how they behave
+ * <p>
+ * the all lots histograms are also on /metrics, as update_latency_&lt;stage&gt;_seconds
+ */
+@Singleton
+public class UpdateLatencies {
+    public enum Stage {
+        INGEST("ingest"), NOTIFY("notify"), APPLY("apply"), DELIVER("deliver"), END_TO_END("endToEnd");
+
+        private final String metricName;
+
+        Stage(String metricName) {
+            this.metricName = metricName;
+        }
+    }
+
+    private final LotRegistry registry;
+    //by stage, then by lot id, with all lots in the last slot
+    private final LatencyHistogram[][] histograms;
+
+    @Inject
+    public UpdateLatencies(LotRegistry registry, MetricsRegistry metrics) {
+        this.registry = registry;
+        this.histograms = new LatencyHistogram[Stage.values().length][registry.size() + 1];
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram[] byLot = histograms[stage.ordinal()];
+            for (int i = 0; i < byLot.length; i++) {
+                byLot[i] = new LatencyHistogram();
+            }
+            //per lot histograms would multiply the series by the number of lots, they stay on /metrics/latency
+            metrics.histogram("update_latency_" + stage.name().toLowerCase(), byLot[byLot.length - 1]);
+        }
+    }
+
+    /**
+     * @param lotId LotRegistry id of the lot, -1 to only count it towards all lots
+     */
+    public void record(Stage stage, int lotId, long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        LatencyHistogram[] byLot = histograms[stage.ordinal()];
+        byLot[byLot.length - 1].record(micros);
+        if (lotId >= 0) {
+            byLot[lotId].record(micros);
+        }
+    }
+
+    /**
+     * @param startNanos System.nanoTime() when the stage started on this backend
+     */
+    public void recordSince(Stage stage, int lotId, long startNanos) {
+        record(stage, lotId, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @param ingestMillis wall clock stamp of the POST, possibly from another backend; ignored if 0
+     */
+    public void recordSinceIngest(Stage stage, int lotId, long ingestMillis) {
+        if (ingestMillis > 0) {
+            record(stage, lotId, TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - ingestMillis));
+        }
+    }
+
+    /**
+     * records deliver and endToEnd of a stamped frame that was just written to a sampled connection
+     */
+    public void delivered(UpdateStamp stamp) {
+        recordSince(Stage.DELIVER, stamp.getLotId(), stamp.getBroadcastNanos());
+        recordSinceIngest(Stage.END_TO_END, stamp.getLotId(), stamp.getIngestMillis());
+    }
+
+    /**
+     * @return per stage: percentiles over all lots, and the same per lot that had any updates
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram[] byLot = histograms[stage.ordinal()];
+            Map<String, Object> lots = new LinkedHashMap<>();
+            for (int lotId = 0; lotId < registry.size(); lotId++) {
+                if (byLot[lotId].getCount() > 0) {
+                    lots.put(registry.nameOf(lotId), byLot[lotId].summary());
+                }
+            }
+            Map<String, Object> stageSummary = new LinkedHashMap<>();
+            stageSummary.put("all", byLot[byLot.length - 1].summary());
+            stageSummary.put("lots", lots);
+            result.put(stage.metricName, stageSummary);
+        }
+        return result;
+    }
+}
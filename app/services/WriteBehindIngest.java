@@ -0,0 +1,219 @@
+package services;
+
+import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import models.CustomConfiguration;
+import models.LotRegistry;
+import play.inject.ApplicationLifecycle;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+import utils.LatencyTimer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Optional write-behind for sensor updates (ingest.writebehind.enabled)
+ * <p>
+ * instead of one HINCRBY (and one notification to every backend) per car, diffs are summed
+ * per lot in a LongAdder, and every ingest.writebehind.flushmillis the lots that changed are
+ * written to redis in a single transaction, so a burst at a gate costs one write per flush.
+ * <p>
+ * a flush takes what it has read out of each adder by subtracting exactly that amount,
+ * so diffs added while it runs are never lost, and a failed flush adds its diffs back.
+ * if redis stays unreachable, diffs pile up; once the oldest one has waited longer than
+ * ingest.writebehind.maxstalenessmillis new diffs are refused (see add), so sensors back off
+ * rather than us accepting updates we may never write. pending diffs are flushed on shutdown
+ */
+@Singleton
+public class WriteBehindIngest {
+    //how long shutdown waits for a running flush
+    private static final long SHUTDOWN_WAIT_MILLIS = 5000;
+
+    private final Logger logger;
+    private final RedisUpdater redisUpdater;
+    private final LotRegistry registry;
+    private final UpdateLatencies updateLatencies;
+    private final boolean enabled;
+    private final long maxStalenessNanos;
+    //pending diff per lot id
+    private final LongAdder[] pending;
+    //when the oldest pending diff was added, 0 if none
+    private final AtomicLong pendingSince = new AtomicLong();
+    private final AtomicBoolean flushing = new AtomicBoolean();
+    private final Cancellable schedule;
+
+    private final LongAdder accepted;
+    private final LongAdder refused;
+    private final LongAdder lotsFlushed;
+    private final LongAdder flushFailures;
+    private final LatencyTimer flushTimer;
+
+    @Inject
+    public WriteBehindIngest(Logger logger,
+                             RedisUpdater redisUpdater,
+                             LotRegistry registry,
+                             UpdateLatencies updateLatencies,
+                             CustomConfiguration configuration,
+                             ActorSystem actorSystem,
+                             MetricsRegistry metrics,
+                             ApplicationLifecycle lifecycle) {
+        this.logger = logger;
+        this.redisUpdater = redisUpdater;
+        this.registry = registry;
+        this.updateLatencies = updateLatencies;
+        this.enabled = configuration.isWriteBehindEnabled();
+        this.maxStalenessNanos = TimeUnit.MILLISECONDS.toNanos(configuration.getWriteBehindMaxStalenessMillis());
+        this.pending = new LongAdder[registry.size()];
+        for (int id = 0; id < pending.length; id++) {
+            pending[id] = new LongAdder();
+        }
+
+        this.accepted = metrics.counter("ingest_writebehind_accepted_total");
+        this.refused = metrics.counter("ingest_writebehind_refused_total");
+        this.lotsFlushed = metrics.counter("ingest_writebehind_lots_flushed_total");
+        this.flushFailures = metrics.counter("ingest_writebehind_flush_failures_total");
+        this.flushTimer = metrics.timer("ingest_writebehind_flush");
+        metrics.gauge("ingest_writebehind_staleness_millis", () -> TimeUnit.NANOSECONDS.toMillis(stalenessNanos()));
+
+        if (enabled) {
+            FiniteDuration interval = Duration.create(configuration.getWriteBehindFlushMillis(), TimeUnit.MILLISECONDS);
+            this.schedule = actorSystem.scheduler().schedule(interval, interval, this::scheduledFlush,
+                    actorSystem.dispatchers().lookup("redis-dispatcher"));
+        } else {
+            this.schedule = null;
+        }
+
+        lifecycle.addStopHook(() -> {
+            if (schedule != null) {
+                schedule.cancel();
+                finalFlush();
+            }
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * cancelling the schedule doesn't stop a flush that is already running, so wait for it to finish
+     * (and to put back its diffs, should it fail) before flushing what is left;
+     * the guard stays taken, so no scheduled flush can start afterwards
+     */
+    private void finalFlush() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_WAIT_MILLIS);
+        while (!flushing.compareAndSet(false, true)) {
+            if (System.nanoTime() - deadline > 0) {
+                logger.warning(String.format("Write-behind flush still running after %d ms, pending diffs not flushed",
+                        SHUTDOWN_WAIT_MILLIS));
+                return;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * @return true if sensor updates should go through add instead of straight to redis
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * queues a diff for the next flush, lock-free
+     *
+     * @return false if the diff was refused because pending diffs are already older
+     * than the staleness bound; diffs for lots not in our config are logged and dropped
+     */
+    public boolean add(String lotName, int diff) {
+        if (stalenessNanos() > maxStalenessNanos) {
+            refused.increment();
+            return false;
+        }
+        int lotId = registry.idOf(lotName);
+        if (lotId == LotRegistry.UNKNOWN) {
+            logger.warning(String.format("Request for update on nonexistent parking lot %s:", lotName));
+            return true;
+        }
+        pending[lotId].add(diff);
+        //after the add, so a flush can at worst think a diff is pending when it's already flushed
+        pendingSince.compareAndSet(0, System.nanoTime());
+        accepted.increment();
+        return true;
+    }
+
+    private long stalenessNanos() {
+        long since = pendingSince.get();
+        return since == 0 ? 0 : System.nanoTime() - since;
+    }
+
+    /**
+     * skipped if the previous flush is still going, e.g. while redis is slow
+     */
+    private void scheduledFlush() {
+        if (!flushing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            flushing.set(false);
+        }
+    }
+
+    /**
+     * writes every lot's pending diff to redis in one transaction
+     */
+    private void flush() {
+        long since = pendingSince.getAndSet(0);
+        if (since == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        Map<String, Integer> increments = new LinkedHashMap<>();
+        for (int id = 0; id < pending.length; id++) {
+            //sum isn't an atomic snapshot, but whatever it missed stays in the adder for the next flush
+            long diff = pending[id].sum();
+            if (diff != 0) {
+                pending[id].add(-diff);
+                increments.put(registry.nameOf(id), (int) diff);
+            }
+        }
+        if (increments.isEmpty()) {
+            return;
+        }
+        //the oldest diff's wall clock time, so latencies include the time spent waiting for this flush
+        long ingestMillis = System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since);
+        try {
+            redisUpdater.updateParkingLotOccupancies(increments, ingestMillis);
+            lotsFlushed.add(increments.size());
+            for (String lotName : increments.keySet()) {
+                updateLatencies.recordSince(UpdateLatencies.Stage.INGEST, registry.idOf(lotName), since);
+            }
+        } catch (RuntimeException e) {
+            flushFailures.increment();
+            logger.warning(String.format("Write-behind flush of %d lots failed, retrying next flush: %s",
+                    increments.size(), e));
+            for (Map.Entry<String, Integer> increment : increments.entrySet()) {
+                pending[registry.idOf(increment.getKey())].add(increment.getValue());
+            }
+            //the diffs put back are as old as they were before
+            pendingSince.accumulateAndGet(since,
+                    (current, restored) -> current == 0 || restored - current < 0 ? restored : current);
+        } finally {
+            flushTimer.recordSince(start);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel: items scheduled for a deadline, handed back once their deadline has passed
+ * <p>
+ * time is cut into ticks, and an item goes into the bucket of its deadline's tick (modulo the
+ * number of buckets); advancing by one tick only looks at that one bucket, so the cost of a tick
+ * depends on how many items fall in it, not on how many items are scheduled in total.
+ * items further out than one turn of the wheel just stay in their bucket for more turns
+ * <p>
+ * items are expired up to one tick late, never early
+ * <p>
+ * not thread safe, meant to be owned by a single thread (or guarded by its owner)
+ */
+public class HashedTimingWheel<T> {
+    private final long tickNanos;
+    private final long startNanos;
+    private final int mask;
+    private final List<Entry<T>>[] buckets;
+    //last tick that was expired
+    private long tick;
+    private int size;
+    //reused by every advance, so expiring allocates nothing
+    private final List<Entry<T>> expired = new ArrayList<>();
+
+    /**
+     * @param wheelSize  number of buckets, rounded up to a power of two
+     * @param tickNanos  length of a tick, the precision of the wheel
+     * @param startNanos time (System.nanoTime) the wheel starts at
+     */
+    @SuppressWarnings("unchecked")
+    public HashedTimingWheel(int wheelSize, long tickNanos, long startNanos) {
+        int buckets = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.tickNanos = tickNanos;
+        this.startNanos = startNanos;
+        this.mask = buckets - 1;
+        this.buckets = new List[buckets];
+        for (int i = 0; i < buckets; i++) {
+            this.buckets[i] = new ArrayList<>();
+        }
+    }
+
+    /**
+     * @param deadlineNanos time (System.nanoTime) after which the item is due,
+     *                      items already due are handed back on the next tick
+     */
+    public void schedule(T item, long deadlineNanos) {
+        //round up, so an item is never handed back before its deadline
+        long deadlineTick = Math.max(tick + 1, (deadlineNanos - startNanos + tickNanos - 1) / tickNanos);
+        buckets[(int) (deadlineTick & mask)].add(new Entry<>(item, deadlineTick));
+        size++;
+    }
+
+    /**
+     * expires every tick up to now, handing each due item to 'due' exactly once;
+     * 'due' may schedule items again
+     */
+    public void advance(long nowNanos, Consumer<T> due) {
+        long nowTick = (nowNanos - startNanos) / tickNanos;
+        while (tick < nowTick) {
+            tick++;
+            List<Entry<T>> bucket = buckets[(int) (tick & mask)];
+            int kept = 0;
+            for (int i = 0; i < bucket.size(); i++) {
+                Entry<T> entry = bucket.get(i);
+                if (entry.deadlineTick <= tick) {
+                    expired.add(entry);
+                } else {
+                    bucket.set(kept++, entry);
+                }
+            }
+            bucket.subList(kept, bucket.size()).clear();
+            size -= expired.size();
+            //only hand items out once the bucket is consistent, as 'due' may schedule into it
+            for (int i = 0; i < expired.size(); i++) {
+                due.accept(expired.get(i).item);
+            }
+            expired.clear();
+        }
+    }
+
+    /**
+     * @return number of items scheduled and not yet handed back
+     */
+    public int size() {
+        return size;
+    }
+
+    private static final class Entry<T> {
+        private final T item;
+        private final long deadlineTick;
+
+        private Entry(T item, long deadlineTick) {
+            this.item = item;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package utils;
+
+import java.util.Locale;
+
+//just enough header parsing for conditional and compressed responses, play leaves both to us
+public class HttpHeaderUtils {
+
+    /**
+     * weak comparison (rfc 7232 section 3.2), so W/"x" matches "x":
+     * proxies that compress our response themselves turn our strong etag into a weak one
+     *
+     * @param ifNoneMatch value of the If-None-Match header, may be null
+     * @param etag        our (quoted) entity-tag
+     * @return true if the header lists the etag, or is *
+     */
+    public static boolean ifNoneMatchMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String opaque = opaqueTag(etag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*") || opaqueTag(tag).equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param acceptEncoding value of the Accept-Encoding header, may be null
+     * @param coding         e.g. gzip
+     * @return true if the coding, or *, is listed with a non zero q-value (rfc 7231 section 5.3.4);
+     * the coding itself wins over *, so "gzip;q=0, *" refuses gzip
+     */
+    public static boolean acceptsEncoding(String acceptEncoding, String coding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        Boolean wildcard = null;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parts = element.split(";");
+            String name = parts[0].trim().toLowerCase(Locale.ROOT);
+            boolean acceptable = qValue(parts) > 0;
+            if (name.equals(coding)) {
+                return acceptable;
+            } else if (name.equals("*")) {
+                wildcard = acceptable;
+            }
+        }
+        return wildcard != null && wildcard;
+    }
+
+    private static String opaqueTag(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    private static double qValue(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            String parameter = parts[i].trim();
+            if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    //a malformed weight doesn't make the coding unacceptable
+                    return 1;
+                }
+            }
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,118 @@
+package utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free, fixed size latency histogram with log-linear buckets (as in HdrHistogram)
+ * <p>
+ * values are microseconds; every power of two is split into SUB_BUCKETS equal buckets,
+ * so any recorded value lands in a bucket at most 1/SUB_BUCKETS (~6%) wider than itself,
+ * from 1 microsecond up to MAX_MICROS (larger values count as MAX_MICROS).
+ * all buckets are allocated up front, recording is just an index computation and an atomic increment
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    //~67 seconds
+    private static final int MAX_MAGNITUDE = 26;
+    public static final long MAX_MICROS = (1L << MAX_MAGNITUDE) - 1;
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50Millis", "p90Millis", "p99Millis", "p999Millis"};
+
+    private final AtomicLongArray counts = new AtomicLongArray(bucketOf(MAX_MICROS) + 1);
+
+    public void record(long micros) {
+        counts.incrementAndGet(bucketOf(Math.max(0, Math.min(micros, MAX_MICROS))));
+    }
+
+    /**
+     * values below SUB_BUCKETS get a bucket each, above that every power of two gets SUB_BUCKETS buckets
+     */
+    private static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int subBucket = (int) (micros >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return highest value that lands in the bucket
+     */
+    private static long highestOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return value (in microseconds) that percentile of recorded values are at or below, 0 if empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = snapshotCounts();
+        return valueAt(snapshot, total(snapshot), percentile);
+    }
+
+    /**
+     * @return count, the usual percentiles and the max, in milliseconds, from one pass over the buckets
+     */
+    public Map<String, Object> summary() {
+        long[] snapshot = snapshotCounts();
+        long total = total(snapshot);
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("count", total);
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            summary.put(PERCENTILE_NAMES[i], valueAt(snapshot, total, PERCENTILES[i]) / 1000.0);
+        }
+        summary.put("maxMillis", valueAt(snapshot, total, 100) / 1000.0);
+        return summary;
+    }
+
+    //buckets are read one by one while others may be recording, so this is only close to a point in time
+    private long[] snapshotCounts() {
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    private static long total(long[] snapshot) {
+        long total = 0;
+        for (long count : snapshot) {
+            total += count;
+        }
+        return total;
+    }
+
+    private static long valueAt(long[] snapshot, long total, double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return highestOf(i);
+            }
+        }
+        return MAX_MICROS;
+    }
+}
@@ -0,0 +1,69 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded buffer of the most recent items, each tagged with a non-decreasing sequence number
+ * once full, adding an item evicts the oldest one
+ * <p>
+ * keeps track of which sequence numbers it still fully covers, so it can tell whether
+ * everything after some sequence number is still available, or some of it was already evicted
+ * <p>
+ * not thread safe, meant to be owned by a single actor
+ */
+public class SequencedRingBuffer<T> {
+    private final long[] seqs;
+    private final Object[] items;
+    private int start;
+    private int size;
+    //every item with a sequence number greater than this is still in the buffer
+    private long coveredAfter;
+
+    /**
+     * @param capacity    max number of items kept
+     * @param startingSeq sequence number before the first item that will ever be added
+     */
+    public SequencedRingBuffer(int capacity, long startingSeq) {
+        this.seqs = new long[capacity];
+        this.items = new Object[capacity];
+        this.coveredAfter = startingSeq;
+    }
+
+    public void add(long seq, T item) {
+        if (seqs.length == 0) {
+            coveredAfter = seq;
+            return;
+        }
+        if (size == seqs.length) {
+            coveredAfter = seqs[start];
+            items[start] = null;
+            start = (start + 1) % seqs.length;
+            size--;
+        }
+        int end = (start + size) % seqs.length;
+        seqs[end] = seq;
+        items[end] = item;
+        size++;
+    }
+
+    /**
+     * @param seq last sequence number the caller has seen
+     * @return every item with a sequence number greater than seq, oldest first,
+     * or null if some of those items were already evicted
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> since(long seq) {
+        if (seq < coveredAfter) {
+            return null;
+        }
+        List<T> result = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            int index = (start + i) % seqs.length;
+            if (seqs[index] > seq) {
+                result.add((T) items[index]);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,97 @@
+package benchmarks;
+
+import models.DiffUpdate;
+import models.EncodedFrame;
+import models.FullStateUpdate;
+import models.KeepAliveMessage;
+import models.ParkingLot;
+import models.WebsocketMessage;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import play.http.websocket.Message;
+import play.libs.Json;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a single broadcast as the number of connected clients grows
+ * <p>
+ * perClient* is what clientManager used to do: Json.toJson for every client,
+ * followed by play's json websocket stringifying that tree once more per client.
+ * shared* is the current path: encode once into an EncodedFrame, hand the same frame to everyone.
+ * <p>
+ * run with the gc profiler to get allocation per broadcast (gc.alloc.rate.norm):
+ * bin/activator "benchmarks/jmh:run -prof gc BroadcastBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int connections;
+
+    private DiffUpdate diffUpdate;
+    private FullStateUpdate fullStateUpdate;
+    private KeepAliveMessage keepAliveMessage;
+
+    @Setup
+    public void setup() {
+        Map<String, ParkingLot> lots = new HashMap<>();
+        for (int i = 0; i < 26; i++) {
+            String name = "Lot " + i;
+            lots.put(name, new ParkingLot(name, i, 100));
+        }
+        diffUpdate = new DiffUpdate("Parking Structure", 42, 1);
+        fullStateUpdate = new FullStateUpdate(lots, 1, "epoch");
+        keepAliveMessage = new KeepAliveMessage();
+    }
+
+    @Benchmark
+    public void perClientDiffUpdate(Blackhole blackhole) {
+        perClient(diffUpdate, blackhole);
+    }
+
+    @Benchmark
+    public void sharedDiffUpdate(Blackhole blackhole) {
+        shared(diffUpdate, blackhole);
+    }
+
+    @Benchmark
+    public void perClientFullStateUpdate(Blackhole blackhole) {
+        perClient(fullStateUpdate, blackhole);
+    }
+
+    @Benchmark
+    public void sharedFullStateUpdate(Blackhole blackhole) {
+        shared(fullStateUpdate, blackhole);
+    }
+
+    @Benchmark
+    public void perClientKeepAlive(Blackhole blackhole) {
+        perClient(keepAliveMessage, blackhole);
+    }
+
+    @Benchmark
+    public void sharedKeepAlive(Blackhole blackhole) {
+        shared(keepAliveMessage, blackhole);
+    }
+
+    private void perClient(WebsocketMessage websocketMessage, Blackhole blackhole) {
+        for (int i = 0; i < connections; i++) {
+            blackhole.consume(new Message.Text(Json.stringify(Json.toJson(websocketMessage))));
+        }
+    }
+
+    private void shared(WebsocketMessage websocketMessage, Blackhole blackhole) {
+        EncodedFrame frame = EncodedFrame.json(websocketMessage);
+        for (int i = 0; i < connections; i++) {
+            blackhole.consume(frame.getMessage());
+        }
+    }
+}
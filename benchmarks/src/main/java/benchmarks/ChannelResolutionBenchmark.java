@@ -0,0 +1,62 @@
+package benchmarks;
+
+import models.LotRegistry;
+import models.ParkingLot;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of finding the lot a redis notification is about, from the channel it arrived on
+ * <p>
+ * replaceThenLookup is what redisSubscriber used to do: strip the prefix with String.replace,
+ * then look the name up; registry looks the whole channel up in the LotRegistry, allocating nothing
+ * <p>
+ * bin/activator "benchmarks/jmh:run -prof gc ChannelResolutionBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChannelResolutionBenchmark {
+    private static final String PREFIX = "cpp-parking:occupancy:";
+
+    @Param({"26", "1000"})
+    public int lots;
+
+    private Map<String, ParkingLot> lotMap;
+    private LotRegistry registry;
+    private String[] channels;
+    private int next;
+
+    @Setup
+    public void setup() {
+        List<ParkingLot> lotList = Lots.list(lots);
+        lotMap = Lots.map(lots);
+        registry = new LotRegistry(lotList, PREFIX);
+        channels = new String[lots];
+        for (int i = 0; i < lots; i++) {
+            //built at runtime like the ones jedis hands us, not interned literals
+            channels[i] = new StringBuilder(PREFIX).append(lotList.get(i).getName()).toString();
+        }
+    }
+
+    @Benchmark
+    public Object replaceThenLookup() {
+        return lotMap.get(nextChannel().replace(PREFIX, ""));
+    }
+
+    @Benchmark
+    public int registry() {
+        return registry.idOfChannel(nextChannel());
+    }
+
+    private String nextChannel() {
+        next = next + 1 == channels.length ? 0 : next + 1;
+        return channels[next];
+    }
+}
@@ -0,0 +1,100 @@
+package benchmarks;
+
+import actors.BroadcastShard;
+import actors.messages.Broadcast;
+import actors.messages.RegisterClient;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import models.DiffUpdate;
+import models.EncodedFrame;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Time from clientManager handing a diff to its broadcast shards until every client actor has it
+ * <p>
+ * clients are stub actors that only count what they get, so this is the shards' fan-out plus
+ * mailbox delivery, without any websocket behind it; clients are spread over the shards
+ * round robin, as clientManager does
+ * <p>
+ * bin/activator "benchmarks/jmh:run FanOutBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+
+    @Param({"1000", "10000", "50000"})
+    public int clients;
+
+    @Param({"1", "4"})
+    public int shards;
+
+    private ActorSystem system;
+    private List<ActorRef> shardRefs;
+    private LongAdder delivered;
+    private EncodedFrame frame;
+
+    @Setup
+    public void setup() {
+        system = ActorSystem.create("fan-out-benchmark");
+        delivered = new LongAdder();
+        frame = EncodedFrame.json(new DiffUpdate("Lot 0", 42, 1));
+        List<String> knownLots = Collections.singletonList("Lot 0");
+        shardRefs = new ArrayList<>();
+        for (int i = 0; i < shards; i++) {
+            shardRefs.add(system.actorOf(Props.create(BroadcastShard.class, knownLots)));
+        }
+        for (int i = 0; i < clients; i++) {
+            ActorRef client = system.actorOf(Props.create(StubClient.class, delivered));
+            shardRefs.get(i % shards).tell(new RegisterClient(client, Collections.emptyList()), ActorRef.noSender());
+        }
+        //registrations are queued ahead of this first broadcast, so once it reached everyone, all are registered
+        broadcast();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Await.result(system.terminate(), Duration.create(30, TimeUnit.SECONDS));
+    }
+
+    @Benchmark
+    public void broadcast() {
+        long target = delivered.sum() + clients;
+        for (ActorRef shard : shardRefs) {
+            shard.tell(new Broadcast(frame), ActorRef.noSender());
+        }
+        while (delivered.sum() < target) {
+            Thread.yield();
+        }
+    }
+
+    public static class StubClient extends UntypedActor {
+        private final LongAdder delivered;
+
+        public StubClient(LongAdder delivered) {
+            this.delivered = delivered;
+        }
+
+        @Override
+        public void onReceive(Object message) throws Throwable {
+            if (message instanceof EncodedFrame) {
+                delivered.increment();
+            } else {
+                unhandled(message);
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package benchmarks;
+
+import models.ParkingLot;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lot fixtures shared by the benchmarks; our config has 26 lots, benchmarks also run with
+ * many more to show how a path scales with the number of lots
+ */
+final class Lots {
+    private Lots() {
+    }
+
+    static List<ParkingLot> list(int count) {
+        List<ParkingLot> lots = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            lots.add(new ParkingLot("Lot " + i, i % 100, 100));
+        }
+        return lots;
+    }
+
+    static Map<String, ParkingLot> map(int count) {
+        Map<String, ParkingLot> lots = new LinkedHashMap<>();
+        for (ParkingLot lot : list(count)) {
+            lots.put(lot.getName(), lot);
+        }
+        return lots;
+    }
+}
@@ -0,0 +1,56 @@
+package benchmarks;
+
+import com.google.gson.Gson;
+import com.typesafe.config.ConfigFactory;
+import models.CustomConfiguration;
+import models.ParkingLot;
+import org.openjdk.jmh.annotations.*;
+import play.Configuration;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of CustomConfiguration.getParkingLots: parsing the lots out of the config
+ * (config -> gson json -> ParkingLot list) on a fresh instance, and the cached list on later calls
+ * <p>
+ * bin/activator "benchmarks/jmh:run -prof gc ParkingLotsConfigBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParkingLotsConfigBenchmark {
+
+    @Param({"26", "1000"})
+    public int lots;
+
+    private Configuration configuration;
+    private Gson gson;
+    private CustomConfiguration cached;
+
+    @Setup
+    public void setup() {
+        StringBuilder conf = new StringBuilder("lots: [\n");
+        for (ParkingLot lot : Lots.list(lots)) {
+            conf.append(String.format("  {name: \"%s\", occupancy: %d, maxCapacity: %d},%n",
+                    lot.getName(), lot.getOccupancy(), lot.getMaxCapacity()));
+        }
+        conf.append("]\n");
+        configuration = new Configuration(ConfigFactory.parseString(conf.toString()));
+        gson = new Gson();
+        cached = new CustomConfiguration(configuration, gson);
+        cached.getParkingLots();
+    }
+
+    @Benchmark
+    public Object parse() {
+        return new CustomConfiguration(configuration, gson).getParkingLots();
+    }
+
+    @Benchmark
+    public Object cached() {
+        return cached.getParkingLots();
+    }
+}
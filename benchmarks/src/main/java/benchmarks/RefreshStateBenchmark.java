@@ -0,0 +1,84 @@
+package benchmarks;
+
+import models.ParkingLot;
+import org.openjdk.jmh.annotations.*;
+import services.ParkingStateStore;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of applying a RefreshState (every redis resubscription, and anti-entropy repairs)
+ * <p>
+ * copyLotMap is what clientManager used to do: copy every ParkingLot into a new map,
+ * then compare it with the previous one. setOccupancies* is the parkingStateStore path,
+ * with every lot changed and with nothing changed (the common case after a resubscription)
+ * <p>
+ * bin/activator "benchmarks/jmh:run -prof gc RefreshStateBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RefreshStateBenchmark {
+
+    @Param({"26", "1000"})
+    public int lots;
+
+    private Map<String, ParkingLot> lotMap;
+    private ParkingStateStore stateStore;
+    //two sets of occupancies that differ for every lot, applied alternately
+    private Map<String, Integer> even;
+    private Map<String, Integer> odd;
+    private boolean useOdd;
+
+    @Setup
+    public void setup() {
+        lotMap = Lots.map(lots);
+        stateStore = new ParkingStateStore(lotMap);
+        even = new HashMap<>();
+        odd = new HashMap<>();
+        for (ParkingLot lot : lotMap.values()) {
+            even.put(lot.getName(), 10);
+            odd.put(lot.getName(), 11);
+        }
+        stateStore.setOccupancies(even);
+    }
+
+    @Benchmark
+    public Object copyLotMap() {
+        Map<String, Integer> latest = next();
+        Map<String, ParkingLot> copy = new HashMap<>();
+        int changed = 0;
+        for (Map.Entry<String, ParkingLot> entry : lotMap.entrySet()) {
+            ParkingLot earlier = entry.getValue();
+            ParkingLot updated = new ParkingLot(earlier);
+            Integer occupancy = latest.get(entry.getKey());
+            if (occupancy != null && occupancy != earlier.getOccupancy()) {
+                updated = updated.withOccupancy(occupancy, earlier.getVersion() + 1);
+                changed++;
+            }
+            copy.put(entry.getKey(), updated);
+        }
+        lotMap = copy;
+        return changed;
+    }
+
+    @Benchmark
+    public Object setOccupanciesAllChanged() {
+        return stateStore.setOccupancies(next());
+    }
+
+    @Benchmark
+    public Object setOccupanciesUnchanged() {
+        return stateStore.setOccupancies(useOdd ? odd : even);
+    }
+
+    private Map<String, Integer> next() {
+        useOdd = !useOdd;
+        return useOdd ? odd : even;
+    }
+}
@@ -0,0 +1,68 @@
+package benchmarks;
+
+import models.DiffUpdate;
+import models.EncodedFrame;
+import models.FullStateUpdate;
+import models.ParkingLot;
+import org.openjdk.jmh.annotations.*;
+import play.libs.Json;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning the messages we send into json
+ * <p>
+ * toJson* builds the jackson tree, as the controller does for GET /lots and as clientManager
+ * used to for every client; encoded* is what an EncodedFrame does once per broadcast
+ * (straight to a string, no tree)
+ * <p>
+ * bin/activator "benchmarks/jmh:run -prof gc SerializationBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"26", "1000"})
+    public int lots;
+
+    private Map<String, ParkingLot> lotMap;
+    private DiffUpdate diffUpdate;
+    private FullStateUpdate fullStateUpdate;
+
+    @Setup
+    public void setup() {
+        lotMap = Lots.map(lots);
+        diffUpdate = new DiffUpdate("Lot 0", 42, 1);
+        fullStateUpdate = new FullStateUpdate(lotMap, 1, "epoch");
+    }
+
+    @Benchmark
+    public Object toJsonDiffUpdate() {
+        return Json.toJson(diffUpdate);
+    }
+
+    @Benchmark
+    public Object toJsonFullStateUpdate() {
+        return Json.toJson(fullStateUpdate);
+    }
+
+    @Benchmark
+    public Object toJsonLotMap() {
+        return Json.toJson(lotMap);
+    }
+
+    @Benchmark
+    public Object encodedDiffUpdate() {
+        return EncodedFrame.json(diffUpdate);
+    }
+
+    @Benchmark
+    public Object encodedFullStateUpdate() {
+        return EncodedFrame.json(fullStateUpdate);
+    }
+}
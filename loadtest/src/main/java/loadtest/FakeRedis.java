@@ -0,0 +1,611 @@
+package loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+/**
+ * In-memory stand-in for redis, speaking just enough of the redis protocol for this backend,
+ * so a load test runs on one box without a real redis
+ * <p>
+ * supports the commands RedisUpdater, RedisSubscriber and jedis send: hashes, counters,
+ * pub/sub with patterns, MULTI/EXEC, and keyspace notifications for hash writes (always on).
+ * there is no lua: the backend's two scripts (update and digest) are recognized by their text
+ * and run natively, any other script fails
+ * <p>
+ * like redis, commands run one at a time (under a single lock), so scripts and transactions are atomic.
+ * connections get a thread each, which is plenty for a backend's connection pool
+ * <p>
+ * run standalone with: bin/activator "loadtest/runMain loadtest.FakeRedis 6380"
+ */
+public class FakeRedis implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(FakeRedis.class.getName());
+
+    private final ServerSocket serverSocket;
+    private final Object lock = new Object();
+    //guarded by lock
+    private final Map<String, Map<String, String>> hashes = new HashMap<>();
+    private final Map<String, String> strings = new HashMap<>();
+    private final Map<String, String> scripts = new HashMap<>();
+    private final List<Session> subscribers = new CopyOnWriteArrayList<>();
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
+
+    /**
+     * @param port port to listen on, on the loopback interface; 0 picks a free one
+     */
+    public FakeRedis(int port) throws IOException {
+        this.serverSocket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "fake-redis-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        logger.info(String.format("Fake redis listening on port %d", getPort()));
+    }
+
+    public static void main(String[] args) throws Exception {
+        FakeRedis redis = new FakeRedis(args.length > 0 ? Integer.parseInt(args[0]) : 6379);
+        Runtime.getRuntime().addShutdownHook(new Thread(redis::close));
+        Thread.currentThread().join();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+        }
+        for (Session session : sessions) {
+            session.close();
+        }
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Session session = new Session(socket);
+                sessions.add(session);
+                Thread thread = new Thread(session, "fake-redis-" + socket.getPort());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (running) {
+                    logger.warning(String.format("Fake redis failed to accept a connection: %s", e));
+                }
+            }
+        }
+    }
+
+    /**
+     * runs one command, or a whole transaction, of a session; the caller holds the lock
+     */
+    private Object execute(Session session, List<String> command) {
+        String name = command.get(0).toUpperCase(Locale.ROOT);
+        switch (name) {
+            case "PING":
+                return command.size() > 1 ? bulk(command.get(1)) : new Status("PONG");
+            case "ECHO":
+                return bulk(command.get(1));
+            case "SELECT":
+                session.db = Integer.parseInt(command.get(1));
+                return Status.OK;
+            case "AUTH":
+            case "CLIENT":
+            case "FLUSHDB":
+                return Status.OK;
+            case "CONFIG":
+                return "GET".equalsIgnoreCase(command.get(1)) ? Collections.emptyList() : Status.OK;
+            case "FLUSHALL":
+                hashes.clear();
+                strings.clear();
+                return Status.OK;
+            case "HGET":
+                return bulk(hash(command.get(1)).get(command.get(2)));
+            case "HMGET": {
+                List<Object> values = new ArrayList<>();
+                for (String field : command.subList(2, command.size())) {
+                    values.add(bulk(hash(command.get(1)).get(field)));
+                }
+                return values;
+            }
+            case "HGETALL": {
+                List<Object> values = new ArrayList<>();
+                for (Map.Entry<String, String> entry : hash(command.get(1)).entrySet()) {
+                    values.add(bulk(entry.getKey()));
+                    values.add(bulk(entry.getValue()));
+                }
+                return values;
+            }
+            case "HSET":
+                return hset(session, command.get(1), command.get(2), command.get(3));
+            case "HSETNX":
+                return hash(command.get(1)).containsKey(command.get(2))
+                        ? 0L
+                        : hset(session, command.get(1), command.get(2), command.get(3));
+            case "HINCRBY":
+                return hincrBy(session, command.get(1), command.get(2), Long.parseLong(command.get(3)));
+            case "GET":
+                return bulk(strings.get(command.get(1)));
+            case "SET":
+                strings.put(command.get(1), command.get(2));
+                return Status.OK;
+            case "INCR":
+                return incr(command.get(1));
+            case "DEL": {
+                long deleted = 0;
+                for (String key : command.subList(1, command.size())) {
+                    if (hashes.remove(key) != null || strings.remove(key) != null) {
+                        deleted++;
+                    }
+                }
+                return deleted;
+            }
+            case "EXISTS":
+                return hashes.containsKey(command.get(1)) || strings.containsKey(command.get(1)) ? 1L : 0L;
+            case "PUBLISH":
+                return publish(command.get(1), command.get(2));
+            case "SCRIPT":
+                return script(command);
+            case "EVAL":
+                return eval(session, loadScript(command.get(1)), command);
+            case "EVALSHA": {
+                String script = scripts.get(command.get(1).toLowerCase(Locale.ROOT));
+                return script == null ? new ErrorReply("NOSCRIPT No matching script. Please use EVAL.") : eval(session, script, command);
+            }
+            default:
+                return new ErrorReply("ERR unknown command '" + command.get(0) + "'");
+        }
+    }
+
+    private Map<String, String> hash(String key) {
+        Map<String, String> hash = hashes.get(key);
+        return hash == null ? Collections.emptyMap() : hash;
+    }
+
+    private long hset(Session session, String key, String field, String value) {
+        boolean added = hashes.computeIfAbsent(key, ignored -> new HashMap<>()).put(field, value) == null;
+        keyspaceEvent(session, key, "hset");
+        return added ? 1 : 0;
+    }
+
+    private Object hincrBy(Session session, String key, String field, long increment) {
+        Map<String, String> hash = hashes.computeIfAbsent(key, ignored -> new HashMap<>());
+        long value;
+        try {
+            value = Long.parseLong(hash.getOrDefault(field, "0")) + increment;
+        } catch (NumberFormatException e) {
+            return new ErrorReply("ERR hash value is not an integer");
+        }
+        hash.put(field, String.valueOf(value));
+        keyspaceEvent(session, key, "hincrby");
+        return value;
+    }
+
+    private long incr(String key) {
+        long value = Long.parseLong(strings.getOrDefault(key, "0")) + 1;
+        strings.put(key, String.valueOf(value));
+        return value;
+    }
+
+    private void keyspaceEvent(Session session, String key, String event) {
+        publish("__keyspace@" + session.db + "__:" + key, event);
+    }
+
+    private long publish(String channel, String message) {
+        long receivers = 0;
+        for (Session subscriber : subscribers) {
+            receivers += subscriber.deliver(channel, message);
+        }
+        return receivers;
+    }
+
+    private Object script(List<String> command) {
+        String subcommand = command.get(1).toUpperCase(Locale.ROOT);
+        switch (subcommand) {
+            case "LOAD":
+                return bulk(sha1(loadScript(command.get(2))));
+            case "EXISTS": {
+                List<Object> exists = new ArrayList<>();
+                for (String sha : command.subList(2, command.size())) {
+                    exists.add(scripts.containsKey(sha.toLowerCase(Locale.ROOT)) ? 1L : 0L);
+                }
+                return exists;
+            }
+            case "FLUSH":
+                scripts.clear();
+                return Status.OK;
+            default:
+                return new ErrorReply("ERR unknown SCRIPT subcommand '" + command.get(1) + "'");
+        }
+    }
+
+    private String loadScript(String script) {
+        scripts.put(sha1(script), script);
+        return script;
+    }
+
+    /**
+     * the scripts in RedisUpdater, by what they do; see there for their keys and args
+     */
+    private Object eval(Session session, String script, List<String> command) {
+        int numKeys = Integer.parseInt(command.get(2));
+        List<String> keys = command.subList(3, 3 + numKeys);
+        List<String> args = command.subList(3 + numKeys, command.size());
+        if (script.contains("HINCRBY") && script.contains("PUBLISH")) {
+            Object incremented = hincrBy(session, keys.get(0), args.get(0), Long.parseLong(args.get(1)));
+            if (incremented instanceof ErrorReply) {
+                return incremented;
+            }
+            long occupancy = (Long) incremented;
+            long maxCapacity = Long.parseLong(args.get(2));
+            if (occupancy < 0 || occupancy > maxCapacity) {
+                occupancy = Math.max(0, Math.min(occupancy, maxCapacity));
+                hset(session, keys.get(0), args.get(0), String.valueOf(occupancy));
+            }
+            long seq = incr(keys.get(1));
+            String stamp = args.size() > 4 ? ":" + args.get(4) : "";
+            publish(args.get(3), occupancy + ":" + seq + stamp);
+            return occupancy;
+        }
+        if (script.contains("digest")) {
+            long digest = 0;
+            for (String key : keys) {
+                String occupancy = hash(key).get(args.get(0));
+                digest = Math.floorMod(digest * 31 + (occupancy == null ? 0 : Long.parseLong(occupancy)), 2147483647L);
+            }
+            return digest;
+        }
+        return new ErrorReply("ERR fake redis can't run this script");
+    }
+
+    private static String sha1(String script) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(script.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(40);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Bulk bulk(String value) {
+        return new Bulk(value);
+    }
+
+    private static boolean globMatches(String pattern, int p, String text, int t) {
+        while (p < pattern.length()) {
+            char c = pattern.charAt(p);
+            if (c == '*') {
+                for (int from = t; from <= text.length(); from++) {
+                    if (globMatches(pattern, p + 1, text, from)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (t == text.length() || (c != '?' && c != text.charAt(t))) {
+                return false;
+            }
+            p++;
+            t++;
+        }
+        return t == text.length();
+    }
+
+    /**
+     * one client connection: reads commands, writes replies, and pushes pub/sub messages once subscribed
+     */
+    private class Session implements Runnable {
+        private final Socket socket;
+        private final InputStream in;
+        //written by this session's thread and by publishers, always under its own monitor
+        private final OutputStream out;
+        private final Set<String> patterns = new LinkedHashSet<>();
+        private List<List<String>> queued;
+        private int db;
+
+        Session(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    List<String> command = readCommand();
+                    if (command.isEmpty()) {
+                        continue;
+                    }
+                    String name = command.get(0).toUpperCase(Locale.ROOT);
+                    if ("QUIT".equals(name)) {
+                        reply(Status.OK);
+                        break;
+                    }
+                    reply(handle(name, command));
+                }
+            } catch (EOFException ignored) {
+                //client hung up
+            } catch (IOException e) {
+                if (running) {
+                    logger.fine(String.format("Fake redis connection failed: %s", e));
+                }
+            } finally {
+                close();
+            }
+        }
+
+        private Object handle(String name, List<String> command) {
+            switch (name) {
+                case "PSUBSCRIBE":
+                    synchronized (this) {
+                        for (String pattern : command.subList(1, command.size())) {
+                            patterns.add(pattern);
+                            write(subscription("psubscribe", pattern));
+                        }
+                        if (!subscribers.contains(this)) {
+                            subscribers.add(this);
+                        }
+                    }
+                    return null;
+                case "PUNSUBSCRIBE":
+                    synchronized (this) {
+                        List<String> removed = command.size() > 1
+                                ? command.subList(1, command.size())
+                                : new ArrayList<>(patterns);
+                        for (String pattern : removed) {
+                            patterns.remove(pattern);
+                            write(subscription("punsubscribe", pattern));
+                        }
+                        if (removed.isEmpty()) {
+                            write(subscription("punsubscribe", null));
+                        }
+                        if (patterns.isEmpty()) {
+                            subscribers.remove(this);
+                        }
+                    }
+                    return null;
+                case "MULTI":
+                    queued = new ArrayList<>();
+                    return Status.OK;
+                case "DISCARD":
+                    queued = null;
+                    return Status.OK;
+                case "EXEC": {
+                    if (queued == null) {
+                        return new ErrorReply("ERR EXEC without MULTI");
+                    }
+                    List<Object> results = new ArrayList<>();
+                    synchronized (lock) {
+                        for (List<String> queuedCommand : queued) {
+                            results.add(safeExecute(queuedCommand));
+                        }
+                    }
+                    queued = null;
+                    return results;
+                }
+                default:
+                    if (queued != null) {
+                        queued.add(command);
+                        return new Status("QUEUED");
+                    }
+                    synchronized (lock) {
+                        return safeExecute(command);
+                    }
+            }
+        }
+
+        private Object safeExecute(List<String> command) {
+            try {
+                return execute(this, command);
+            } catch (RuntimeException e) {
+                return new ErrorReply("ERR " + e);
+            }
+        }
+
+        private List<Object> subscription(String kind, String pattern) {
+            List<Object> reply = new ArrayList<>();
+            reply.add(bulk(kind));
+            reply.add(bulk(pattern));
+            reply.add((long) patterns.size());
+            return reply;
+        }
+
+        /**
+         * @return number of this session's patterns the channel matched, each gets a pmessage
+         */
+        synchronized int deliver(String channel, String message) {
+            int matched = 0;
+            for (String pattern : patterns) {
+                if (globMatches(pattern, 0, channel, 0)) {
+                    List<Object> reply = new ArrayList<>();
+                    reply.add(bulk("pmessage"));
+                    reply.add(bulk(pattern));
+                    reply.add(bulk(channel));
+                    reply.add(bulk(message));
+                    write(reply);
+                    matched++;
+                }
+            }
+            if (matched > 0) {
+                flush();
+            }
+            return matched;
+        }
+
+        private synchronized void reply(Object reply) throws IOException {
+            if (reply != null) {
+                write(reply);
+            }
+            //pipelined commands are answered in one write
+            if (in.available() == 0) {
+                out.flush();
+            }
+        }
+
+        private void write(Object reply) {
+            try {
+                writeReply(reply);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void flush() {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void writeReply(Object reply) throws IOException {
+            if (reply instanceof Status) {
+                writeLine("+" + ((Status) reply).text);
+            } else if (reply instanceof ErrorReply) {
+                writeLine("-" + ((ErrorReply) reply).text);
+            } else if (reply instanceof Long) {
+                writeLine(":" + reply);
+            } else if (reply instanceof Bulk) {
+                String value = ((Bulk) reply).value;
+                if (value == null) {
+                    writeLine("$-1");
+                } else {
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    writeLine("$" + bytes.length);
+                    out.write(bytes);
+                    out.write('\r');
+                    out.write('\n');
+                }
+            } else if (reply instanceof List) {
+                List<?> items = (List<?>) reply;
+                writeLine("*" + items.size());
+                for (Object item : items) {
+                    writeReply(item);
+                }
+            } else {
+                throw new IllegalArgumentException("Can't encode " + reply);
+            }
+        }
+
+        private void writeLine(String line) throws IOException {
+            out.write(line.getBytes(StandardCharsets.UTF_8));
+            out.write('\r');
+            out.write('\n');
+        }
+
+        /**
+         * reads one command, sent as an array of bulk strings (or inline, as typed into telnet)
+         */
+        private List<String> readCommand() throws IOException {
+            String line = readLine();
+            if (!line.startsWith("*")) {
+                List<String> inline = new ArrayList<>();
+                for (String part : line.trim().split("\\s+")) {
+                    if (!part.isEmpty()) {
+                        inline.add(part);
+                    }
+                }
+                return inline;
+            }
+            int count = Integer.parseInt(line.substring(1));
+            List<String> command = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String header = readLine();
+                if (!header.startsWith("$")) {
+                    throw new IOException("Expected a bulk string, got " + header);
+                }
+                byte[] bytes = new byte[Integer.parseInt(header.substring(1))];
+                int read = 0;
+                while (read < bytes.length) {
+                    int n = in.read(bytes, read, bytes.length - read);
+                    if (n < 0) {
+                        throw new EOFException();
+                    }
+                    read += n;
+                }
+                readLine();
+                command.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            return command;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0) {
+                    throw new EOFException();
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
+        void close() {
+            subscribers.remove(this);
+            sessions.remove(this);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static final class Status {
+        static final Status OK = new Status("OK");
+        final String text;
+
+        Status(String text) {
+            this.text = text;
+        }
+    }
+
+    private static final class ErrorReply {
+        final String text;
+
+        ErrorReply(String text) {
+            this.text = text;
+        }
+    }
+
+    private static final class Bulk {
+        final String value;
+
+        Bulk(String value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package loadtest;
+
+import akka.Done;
+import akka.actor.ActorSystem;
+import akka.http.javadsl.Http;
+import akka.http.javadsl.model.ContentTypes;
+import akka.http.javadsl.model.HttpRequest;
+import akka.http.javadsl.model.HttpResponse;
+import akka.http.javadsl.model.ws.Message;
+import akka.http.javadsl.model.ws.WebSocketRequest;
+import akka.http.javadsl.model.ws.WebSocketUpgradeResponse;
+import akka.japi.Pair;
+import akka.stream.ActorMaterializer;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Flow;
+import akka.stream.javadsl.Keep;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.typesafe.config.ConfigFactory;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+import utils.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Opens many /wlots connections to a running backend while replaying sensor POSTs to /lots, then reports:
+ * <ul>
+ * <li>server heap per connection: heap used before and after connecting, read from /metrics,
+ * after a full gc if the server's pid is given (jcmd has to be on the path)</li>
+ * <li>connection setup latency: until the websocket upgrade (which waits on the createClientActor ask),
+ * and until the full state arrives</li>
+ * <li>delivery latency: from a lot's POST until its diff arrives on a connection, on every connection.
+ * the POST is timed when we issue it, so time it waits in our own connection pool counts too</li>
+ * <li>dropped frames: diffs skipped on a connection (gaps in seq), plus the server's own counts
+ * of conflated frames and slow / overflowed connections</li>
+ * </ul>
+ * POSTs go round robin over all lots, one lot at a time, so with 26 lots and the default rate a lot is
+ * posted every 2.6 seconds; a diff is timed against the latest POST of its lot, so latencies beyond
+ * that interval can't be measured. seq gaps are only exact with broadcast.coalescemillis = 0,
+ * a coalesced batch can stand for several changes of the same lot
+ * <p>
+ * --fakeredis &lt;port&gt; also starts a FakeRedis in this JVM, start the backend against it with
+ * REDIS_PORT=&lt;port&gt;. the report is printed as json, so runs can be compared. e.g.
+ * <pre>
+ * bin/activator "loadtest/runMain loadtest.LoadGenerator --connections 30000 --connectrate 1000 --postrate 10"
+ * </pre>
+ */
+public class LoadGenerator {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final int connectRate;
+    private final int postRate;
+    private final int durationSeconds;
+    private final String serverPid;
+
+    private final ActorSystem system;
+    private final Materializer materializer;
+    private final Http http;
+
+    private String[] lots;
+    private Map<String, Integer> lotIndexes;
+    //System.nanoTime() of the latest POST per lot index, 0 before the first one
+    private AtomicLongArray lastPostNanos;
+    private volatile boolean stopping;
+
+    private final LatencyHistogram upgradeLatency = new LatencyHistogram();
+    private final LatencyHistogram fullStateLatency = new LatencyHistogram();
+    private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder disconnected = new LongAdder();
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder keepAlives = new LongAdder();
+    private final LongAdder skippedDiffs = new LongAdder();
+    private final LongAdder postsOk = new LongAdder();
+    private final LongAdder postsRejected = new LongAdder();
+    private final LongAdder postsFailed = new LongAdder();
+
+    LoadGenerator(Map<String, String> options) {
+        this.host = options.getOrDefault("host", "localhost");
+        this.port = Integer.parseInt(options.getOrDefault("port", "9000"));
+        this.connections = Integer.parseInt(options.getOrDefault("connections", "1000"));
+        this.connectRate = Math.max(1, Integer.parseInt(options.getOrDefault("connectrate", "500")));
+        this.postRate = Math.max(1, Integer.parseInt(options.getOrDefault("postrate", "10")));
+        this.durationSeconds = Integer.parseInt(options.getOrDefault("duration", "60"));
+        this.serverPid = options.get("pid");
+        //the server's keepalives keep connections busy, but a quiet one must not be closed on us
+        this.system = ActorSystem.create("loadtest", ConfigFactory.parseString(
+                "akka.http.client.idle-timeout = infinite\n" +
+                "akka.http.host-connection-pool.max-open-requests = 1024\n" +
+                "akka.http.host-connection-pool.max-connections = 32\n")
+                //not load(): the backend's application.conf is on our classpath too
+                .withFallback(ConfigFactory.defaultReference()));
+        this.materializer = ActorMaterializer.create(system);
+        this.http = Http.get(system);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        FakeRedis redis = options.containsKey("fakeredis")
+                ? new FakeRedis(Integer.parseInt(options.get("fakeredis")))
+                : null;
+        if (redis != null) {
+            System.err.println(String.format("Fake redis on port %d, start the backend with REDIS_PORT=%d, then press enter",
+                    redis.getPort(), redis.getPort()));
+            System.in.read();
+        }
+        LoadGenerator generator = new LoadGenerator(options);
+        try {
+            Map<String, Object> report = generator.run();
+            System.out.println(MAPPER.enable(SerializationFeature.INDENT_OUTPUT).writeValueAsString(report));
+        } finally {
+            generator.shutdown();
+            if (redis != null) {
+                redis.close();
+            }
+        }
+    }
+
+    Map<String, Object> run() throws Exception {
+        loadLots();
+        long heapBefore = serverHeapUsed();
+
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            //open at connectRate per second, without drifting when opening one takes a while
+            long due = connectStart + TimeUnit.SECONDS.toNanos(1) * i / connectRate;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            connect();
+        }
+        while (opened.sum() + failed.sum() < connections
+                && System.nanoTime() - connectStart < TimeUnit.SECONDS.toNanos(connections / connectRate + 30)) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        long connectMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStart);
+        //let the server finish registering everyone before weighing it
+        TimeUnit.SECONDS.sleep(5);
+        long heapAfter = serverHeapUsed();
+
+        ScheduledExecutorService poster = Executors.newSingleThreadScheduledExecutor();
+        AtomicLong posts = new AtomicLong();
+        poster.scheduleAtFixedRate(() -> post(posts.getAndIncrement()),
+                0, TimeUnit.SECONDS.toNanos(1) / postRate, TimeUnit.NANOSECONDS);
+        TimeUnit.SECONDS.sleep(durationSeconds);
+        poster.shutdown();
+        //posts can queue up in our own connection pool when this side is the busy one;
+        //let them finish, or the metrics request below queues behind them
+        long drainStart = System.nanoTime();
+        while (postsOk.sum() + postsRejected.sum() + postsFailed.sum() < posts.get()
+                && System.nanoTime() - drainStart < TimeUnit.SECONDS.toNanos(30)) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        //diffs of the last posts are still on their way
+        TimeUnit.SECONDS.sleep(2);
+        stopping = true;
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        Map<String, Object> connectionReport = new LinkedHashMap<>();
+        connectionReport.put("requested", connections);
+        connectionReport.put("opened", opened.sum());
+        connectionReport.put("failed", failed.sum());
+        connectionReport.put("disconnectedByServer", disconnected.sum());
+        connectionReport.put("secondsToOpen", connectMillis / 1000.0);
+        connectionReport.put("upgrade", upgradeLatency.summary());
+        connectionReport.put("fullState", fullStateLatency.summary());
+        report.put("connections", connectionReport);
+
+        Map<String, Object> heapReport = new LinkedHashMap<>();
+        heapReport.put("afterFullGc", serverPid != null);
+        heapReport.put("usedBeforeBytes", heapBefore);
+        heapReport.put("usedAfterBytes", heapAfter);
+        heapReport.put("bytesPerConnection", opened.sum() == 0 ? 0 : (heapAfter - heapBefore) / opened.sum());
+        report.put("serverHeap", heapReport);
+
+        Map<String, Object> postReport = new LinkedHashMap<>();
+        postReport.put("sent", posts.get());
+        postReport.put("ok", postsOk.sum());
+        postReport.put("rejected", postsRejected.sum());
+        postReport.put("failed", postsFailed.sum());
+        postReport.put("unanswered", posts.get() - postsOk.sum() - postsRejected.sum() - postsFailed.sum());
+        report.put("posts", postReport);
+
+        Map<String, Object> frameReport = new LinkedHashMap<>();
+        frameReport.put("received", frames.sum());
+        frameReport.put("keepAlives", keepAlives.sum());
+        frameReport.put("skippedDiffs", skippedDiffs.sum());
+        frameReport.put("delivery", deliveryLatency.summary());
+        report.put("frames", frameReport);
+
+        Map<String, Object> serverMetrics = new LinkedHashMap<>();
+        JsonNode metrics = serverMetrics();
+        for (String name : new String[]{"ws_connections_open", "ws_outbound_conflated_frames_total",
+                "ws_outbound_buffer_overflows_total", "ws_slow_clients_disconnected_total",
+                "ingest_rejected_total", "redis_errors_total"}) {
+            serverMetrics.put(name, metrics.path(name).asLong());
+        }
+        report.put("server", serverMetrics);
+        return report;
+    }
+
+    void shutdown() throws Exception {
+        stopping = true;
+        Await.result(system.terminate(), Duration.create(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * learns the lot names from the full state GET /lots serves
+     */
+    private void loadLots() throws Exception {
+        JsonNode state = MAPPER.readTree(get("/lots"));
+        List<String> names = new ArrayList<>();
+        Iterator<Map.Entry<String, JsonNode>> fields = state.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            if (field.getValue().isObject()) {
+                names.add(field.getKey());
+            }
+        }
+        if (names.isEmpty()) {
+            throw new IllegalStateException("GET /lots returned no lots");
+        }
+        lots = names.toArray(new String[0]);
+        lotIndexes = new HashMap<>();
+        for (int i = 0; i < lots.length; i++) {
+            lotIndexes.put(lots[i], i);
+        }
+        lastPostNanos = new AtomicLongArray(lots.length);
+    }
+
+    private void connect() {
+        Connection connection = new Connection(System.nanoTime());
+        //a streamed text message is folded before the next message is looked at, so frames are handled in order
+        Flow<Message, Message, CompletionStage<Done>> flow = Flow.fromSinkAndSourceMat(
+                Flow.<Message>create()
+                        .filter(Message::isText)
+                        .mapAsync(1, connection::receive)
+                        .toMat(Sink.foreach(received -> connection.onText(received.text, received.nanos)), Keep.right()),
+                //we never send anything, but mustn't complete our side either
+                Source.<Message>maybe(),
+                Keep.left());
+        Pair<CompletionStage<WebSocketUpgradeResponse>, CompletionStage<Done>> materialized =
+                http.singleWebSocketRequest(WebSocketRequest.create("ws://" + host + ":" + port + "/wlots"),
+                        flow, materializer);
+        materialized.first().whenComplete((upgrade, failure) -> {
+            if (failure == null && upgrade.isValid()) {
+                upgradeLatency.record(micros(System.nanoTime() - connection.startNanos));
+                opened.increment();
+            } else {
+                failed.increment();
+            }
+        });
+        materialized.second().whenComplete((done, failure) -> {
+            if (connection.gotFullState && !stopping) {
+                disconnected.increment();
+            }
+        });
+    }
+
+    private void post(long n) {
+        int lot = (int) (n % lots.length);
+        //+1 then -1 per lot, so occupancy stays put (and inside [0, maxCapacity]) however long we run
+        int diff = (n / lots.length) % 2 == 0 ? 1 : -1;
+        String body;
+        try {
+            Map<String, Object> update = new LinkedHashMap<>();
+            update.put("lot", lots[lot]);
+            update.put("diff", diff);
+            body = MAPPER.writeValueAsString(update);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        lastPostNanos.set(lot, System.nanoTime());
+        http.singleRequest(HttpRequest.POST("http://" + host + ":" + port + "/lots")
+                .withEntity(ContentTypes.APPLICATION_JSON, body), materializer)
+                .whenComplete((response, failure) -> {
+                    if (failure != null) {
+                        postsFailed.increment();
+                        return;
+                    }
+                    response.discardEntityBytes(materializer);
+                    int status = response.status().intValue();
+                    if (status == 200) {
+                        postsOk.increment();
+                    } else if (status == 503) {
+                        postsRejected.increment();
+                    } else {
+                        postsFailed.increment();
+                    }
+                });
+    }
+
+    private long serverHeapUsed() throws Exception {
+        if (serverPid != null) {
+            Process gc = new ProcessBuilder("jcmd", serverPid, "GC.run").inheritIO().start();
+            gc.waitFor(30, TimeUnit.SECONDS);
+        }
+        return serverMetrics().path("jvm_memory_heap_used_bytes").asLong();
+    }
+
+    private JsonNode serverMetrics() throws Exception {
+        return MAPPER.readTree(get("/metrics?format=json"));
+    }
+
+    private String get(String path) throws Exception {
+        HttpResponse response = http.singleRequest(HttpRequest.GET("http://" + host + ":" + port + path), materializer)
+                .toCompletableFuture().get(10, TimeUnit.SECONDS);
+        return response.entity().toStrict(10000, materializer).toCompletableFuture()
+                .get(10, TimeUnit.SECONDS).getData().utf8String();
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * one websocket; its frames are handled one at a time, in order (see connect()),
+     * so its fields need no synchronization
+     */
+    private class Connection {
+        private final long startNanos;
+        private volatile boolean gotFullState;
+        private long lastSeq = -1;
+
+        Connection(long startNanos) {
+            this.startNanos = startNanos;
+        }
+
+        /**
+         * @return the whole text of the message, once its last part arrived
+         */
+        CompletionStage<Received> receive(Message message) {
+            long receivedNanos = System.nanoTime();
+            if (message.asTextMessage().isStrict()) {
+                return CompletableFuture.completedFuture(
+                        new Received(message.asTextMessage().getStrictText(), receivedNanos));
+            }
+            return message.asTextMessage().getStreamedText()
+                    .runFold("", String::concat, materializer)
+                    .thenApply(text -> new Received(text, receivedNanos));
+        }
+
+        void onText(String text, long receivedNanos) {
+            frames.increment();
+            JsonNode frame;
+            try {
+                frame = MAPPER.readTree(text);
+            } catch (Exception e) {
+                return;
+            }
+            long seq = frame.path("seq").asLong(-1);
+            switch (frame.path("header").asText()) {
+                case "FullStateUpdate":
+                    if (!gotFullState) {
+                        gotFullState = true;
+                        fullStateLatency.record(micros(receivedNanos - startNanos));
+                    }
+                    lastSeq = seq;
+                    break;
+                case "DiffUpdate":
+                    delivered(frame.path("lot").asText(), receivedNanos);
+                    if (lastSeq >= 0 && seq > lastSeq + 1) {
+                        skippedDiffs.add(seq - lastSeq - 1);
+                    }
+                    lastSeq = Math.max(lastSeq, seq);
+                    break;
+                case "BatchDiffUpdate":
+                    Iterator<String> batchLots = frame.path("lots").fieldNames();
+                    while (batchLots.hasNext()) {
+                        delivered(batchLots.next(), receivedNanos);
+                    }
+                    lastSeq = Math.max(lastSeq, seq);
+                    break;
+                case "KeepAliveMessage":
+                    keepAlives.increment();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void delivered(String lot, long receivedNanos) {
+            Integer index = lotIndexes.get(lot);
+            if (index == null) {
+                return;
+            }
+            long postNanos = lastPostNanos.get(index);
+            if (postNanos > 0) {
+                deliveryLatency.record(micros(receivedNanos - postNanos));
+            }
+        }
+    }
+
+    private static final class Received {
+        private final String text;
+        //when the message started arriving
+        private final long nanos;
+
+        Received(String text, long nanos) {
+            this.text = text;
+            this.nanos = nanos;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+import models.BatchDiffUpdate;
+import models.BinaryFrameEncoder;
+import models.DiffUpdate;
+import models.EncodedFrame;
+import models.FullStateUpdate;
+import models.KeepAliveMessage;
+import models.LotRegistry;
+import models.ParkingLot;
+import models.WireFormat;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.*;
+
+public class BinaryFrameEncoderTest {
+
+    private final BinaryFrameEncoder encoder = new BinaryFrameEncoder(new LotRegistry(Arrays.asList(
+            new ParkingLot("A", 3, 100), new ParkingLot("B", 7, 50)), ""));
+
+    @Test
+    public void diffUpdateIsOneRecord() throws IOException {
+        DataInputStream in = read(encoder.encode(new DiffUpdate("B", 42, 9)));
+
+        assertEquals(BinaryFrameEncoder.UPDATES, in.readByte());
+        assertEquals(1, in.readShort());
+        assertEquals(1, in.readShort());
+        assertEquals(42, in.readInt());
+        assertEquals(9, in.readLong());
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    public void batchDiffUpdateHasARecordPerLot() throws IOException {
+        Map<String, Integer> lots = new LinkedHashMap<>();
+        lots.put("A", 1);
+        lots.put("B", 2);
+        DataInputStream in = read(encoder.encode(new BatchDiffUpdate(lots, 5)));
+
+        assertEquals(BinaryFrameEncoder.UPDATES, in.readByte());
+        assertEquals(2, in.readShort());
+        assertEquals(0, in.readShort());
+        assertEquals(1, in.readInt());
+        assertEquals(5, in.readLong());
+        assertEquals(1, in.readShort());
+        assertEquals(2, in.readInt());
+        assertEquals(5, in.readLong());
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    public void fullStateListsLotsInRegistryOrder() throws IOException {
+        Map<String, ParkingLot> lots = new LinkedHashMap<>();
+        lots.put("B", new ParkingLot("B", 7, 50));
+        lots.put("A", new ParkingLot("A", 3, 100));
+        DataInputStream in = read(encoder.encode(new FullStateUpdate(lots, 11, "epoch")));
+
+        assertEquals(BinaryFrameEncoder.FULL_STATE, in.readByte());
+        assertEquals(11, in.readLong());
+        assertEquals("epoch", in.readUTF());
+        assertEquals(2, in.readShort());
+        assertEquals("A", in.readUTF());
+        assertEquals(100, in.readInt());
+        assertEquals(3, in.readInt());
+        assertEquals("B", in.readUTF());
+        assertEquals(50, in.readInt());
+        assertEquals(7, in.readInt());
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    public void keepAliveIsJustItsType() {
+        assertArrayEquals(new byte[]{BinaryFrameEncoder.KEEP_ALIVE}, encoder.encode(new KeepAliveMessage()));
+    }
+
+    @Test
+    public void deflatedPayloadInflatesToTheOriginal() throws DataFormatException {
+        List<ParkingLot> lotList = new ArrayList<>();
+        Map<String, ParkingLot> lots = new LinkedHashMap<>();
+        for (int i = 0; i < 100; i++) {
+            ParkingLot lot = new ParkingLot("Lot " + i, i, 100);
+            lotList.add(lot);
+            lots.put(lot.getName(), lot);
+        }
+        BinaryFrameEncoder manyLots = new BinaryFrameEncoder(new LotRegistry(lotList, ""));
+        byte[] frame = manyLots.encode(new FullStateUpdate(lots, 1, "epoch"));
+
+        byte[] deflated = manyLots.deflate(frame);
+
+        assertTrue(deflated.length < frame.length);
+        assertEquals((byte) (BinaryFrameEncoder.FULL_STATE | BinaryFrameEncoder.DEFLATED), deflated[0]);
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(deflated, 1, deflated.length - 1);
+        byte[] payload = new byte[frame.length - 1];
+        int length = inflater.inflate(payload);
+        inflater.end();
+        assertEquals(payload.length, length);
+        assertArrayEquals(Arrays.copyOfRange(frame, 1, frame.length), payload);
+    }
+
+    @Test
+    public void incompressibleFramesAreLeftAlone() {
+        byte[] keepAlive = encoder.encode(new KeepAliveMessage());
+        assertSame(keepAlive, encoder.deflate(keepAlive));
+
+        byte[] noise = new byte[64];
+        new Random(42).nextBytes(noise);
+        noise[0] = BinaryFrameEncoder.UPDATES;
+        assertSame(noise, encoder.deflate(noise));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void jsonOnlyFramesRefuseBinary() {
+        EncodedFrame.json(new DiffUpdate("A", 1, 1)).getMessage(WireFormat.BINARY);
+    }
+
+    private static DataInputStream read(byte[] frame) {
+        return new DataInputStream(new ByteArrayInputStream(frame));
+    }
+}
@@ -0,0 +1,61 @@
+import org.junit.Test;
+import utils.HashedTimingWheel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HashedTimingWheelTest {
+
+    @Test
+    public void itemsAreDueOnlyOnceTheirDeadlinePassed() {
+        HashedTimingWheel<String> wheel = new HashedTimingWheel<>(8, 10, 0);
+        wheel.schedule("a", 25);
+        wheel.schedule("b", 40);
+        List<String> due = new ArrayList<>();
+
+        wheel.advance(20, due::add);
+        assertEquals(Collections.emptyList(), due);
+
+        wheel.advance(30, due::add);
+        assertEquals(Collections.singletonList("a"), due);
+
+        wheel.advance(40, due::add);
+        assertEquals(Arrays.asList("a", "b"), due);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void itemsFurtherThanOneTurnWaitForTheirTurn() {
+        HashedTimingWheel<String> wheel = new HashedTimingWheel<>(4, 10, 0);
+        //same bucket as tick 1, but three turns later
+        wheel.schedule("late", 130);
+        List<String> due = new ArrayList<>();
+
+        wheel.advance(120, due::add);
+        assertEquals(Collections.emptyList(), due);
+
+        wheel.advance(130, due::add);
+        assertEquals(Collections.singletonList("late"), due);
+    }
+
+    @Test
+    public void dueItemsCanBeRescheduled() {
+        HashedTimingWheel<String> wheel = new HashedTimingWheel<>(4, 10, 0);
+        wheel.schedule("a", 10);
+        List<String> due = new ArrayList<>();
+
+        //rescheduling a full turn later lands in the bucket being expired
+        wheel.advance(10, item -> {
+            due.add(item);
+            wheel.schedule(item, 50);
+        });
+        assertEquals(1, wheel.size());
+
+        wheel.advance(50, due::add);
+        assertEquals(Arrays.asList("a", "a"), due);
+    }
+}
@@ -0,0 +1,49 @@
+import org.junit.Test;
+import utils.HttpHeaderUtils;
+
+import static org.junit.Assert.*;
+
+public class HttpHeaderUtilsTest {
+    private static final String ETAG = "\"epoch-42\"";
+
+    @Test
+    public void ifNoneMatchListsTheEtag() {
+        assertTrue(HttpHeaderUtils.ifNoneMatchMatches("\"epoch-42\"", ETAG));
+        assertTrue(HttpHeaderUtils.ifNoneMatchMatches("\"epoch-41\", \"epoch-42\"", ETAG));
+        assertFalse(HttpHeaderUtils.ifNoneMatchMatches("\"epoch-41\", \"epoch-43\"", ETAG));
+        assertFalse(HttpHeaderUtils.ifNoneMatchMatches(null, ETAG));
+    }
+
+    @Test
+    public void ifNoneMatchComparesWeakly() {
+        assertTrue(HttpHeaderUtils.ifNoneMatchMatches("W/\"epoch-42\"", ETAG));
+        assertTrue(HttpHeaderUtils.ifNoneMatchMatches("\"a\",W/\"epoch-42\"", ETAG));
+        assertTrue(HttpHeaderUtils.ifNoneMatchMatches("\"epoch-42\"", "W/" + ETAG));
+        assertFalse(HttpHeaderUtils.ifNoneMatchMatches("W/\"epoch-4\"", ETAG));
+    }
+
+    @Test
+    public void ifNoneMatchStarMatchesAnything() {
+        assertTrue(HttpHeaderUtils.ifNoneMatchMatches("*", ETAG));
+        assertTrue(HttpHeaderUtils.ifNoneMatchMatches(" * ", ETAG));
+    }
+
+    @Test
+    public void acceptsListedEncodings() {
+        assertTrue(HttpHeaderUtils.acceptsEncoding("gzip", "gzip"));
+        assertTrue(HttpHeaderUtils.acceptsEncoding("deflate, GZIP;q=0.5", "gzip"));
+        assertTrue(HttpHeaderUtils.acceptsEncoding("br, *", "gzip"));
+        assertFalse(HttpHeaderUtils.acceptsEncoding("deflate, br", "gzip"));
+        assertFalse(HttpHeaderUtils.acceptsEncoding(null, "gzip"));
+        assertFalse(HttpHeaderUtils.acceptsEncoding("x-gzip-ish", "gzip"));
+    }
+
+    @Test
+    public void honorsZeroQValues() {
+        assertFalse(HttpHeaderUtils.acceptsEncoding("gzip;q=0", "gzip"));
+        assertFalse(HttpHeaderUtils.acceptsEncoding("gzip; q=0.000", "gzip"));
+        assertFalse(HttpHeaderUtils.acceptsEncoding("*;q=0", "gzip"));
+        assertFalse(HttpHeaderUtils.acceptsEncoding("gzip;q=0, *", "gzip"));
+        assertTrue(HttpHeaderUtils.acceptsEncoding("*;q=0, gzip", "gzip"));
+    }
+}
@@ -0,0 +1,31 @@
+import org.junit.Test;
+import utils.LatencyHistogram;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentilesAreWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        long p50 = histogram.getValueAtPercentile(50);
+        assertTrue("p50 was " + p50, p50 >= 500 && p50 <= 500 * 17 / 16);
+        long p99 = histogram.getValueAtPercentile(99);
+        assertTrue("p99 was " + p99, p99 >= 990 && p99 <= 990 * 17 / 16);
+    }
+
+    @Test
+    public void outOfRangeValuesAreClamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(LatencyHistogram.MAX_MICROS, histogram.getValueAtPercentile(100));
+    }
+}
@@ -0,0 +1,26 @@
+import org.junit.Test;
+import services.MetricsRegistry;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+
+    @Test
+    public void prometheusTextHasTypedSamples() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.counter("test_requests_total").add(3);
+        metrics.gauge("test_depth", () -> 7);
+        metrics.timer("test_command").record(TimeUnit.MILLISECONDS.toNanos(500));
+
+        String text = metrics.prometheusText();
+
+        assertTrue(text.contains("# TYPE test_requests_total counter\ntest_requests_total 3\n"));
+        assertTrue(text.contains("# TYPE test_depth gauge\ntest_depth 7\n"));
+        assertTrue(text.contains("# TYPE test_command_seconds summary\n"));
+        assertTrue(text.contains("test_command_seconds_count 1\n"));
+        assertTrue(text.contains("test_command_seconds_sum 0.5\n"));
+        assertTrue(text.contains("jvm_memory_heap_used_bytes "));
+    }
+}
@@ -0,0 +1,84 @@
+import models.ParkingLot;
+import org.junit.Test;
+import services.ParkingStateStore;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ParkingStateStoreTest {
+
+    private ParkingStateStore createStore() {
+        Map<String, ParkingLot> initialState = new HashMap<>();
+        initialState.put("A", new ParkingLot("A", 0, 100));
+        initialState.put("B", new ParkingLot("B", 5, 50));
+        return new ParkingStateStore(initialState);
+    }
+
+    @Test
+    public void updateBumpsGlobalAndLotVersion() {
+        ParkingStateStore store = createStore();
+        ParkingStateStore.Snapshot before = store.get();
+
+        ParkingStateStore.Snapshot after = store.setOccupancy("A", 7);
+
+        assertEquals(before.getVersion() + 1, after.getVersion());
+        assertEquals(7, after.getLot("A").getOccupancy());
+        assertEquals(after.getVersion(), after.getLot("A").getVersion());
+        assertEquals(0, after.getLot("B").getVersion());
+        //the earlier snapshot is untouched
+        assertEquals(0, before.getLot("A").getOccupancy());
+        assertSame(after, store.get());
+    }
+
+    @Test
+    public void unchangedOrUnknownLotsKeepSnapshot() {
+        ParkingStateStore store = createStore();
+        ParkingStateStore.Snapshot before = store.get();
+
+        assertSame(before, store.setOccupancy("B", 5));
+        assertSame(before, store.setOccupancy("nonexistent", 3));
+    }
+
+    @Test
+    public void updateByIdMatchesUpdateByName() {
+        ParkingStateStore store = createStore();
+        int lotId = store.getRegistry().idOf("A");
+
+        ParkingStateStore.Snapshot after = store.setOccupancy(lotId, 9);
+
+        assertEquals(9, after.getOccupancy(lotId));
+        assertEquals(after.getVersion(), after.getLotVersion(lotId));
+        assertEquals(9, after.getLot("A").getOccupancy());
+        assertEquals(100, after.getLot("A").getMaxCapacity());
+    }
+
+    @Test
+    public void staleRefreshDoesNotReplaceNewerLotState() {
+        ParkingStateStore store = createStore();
+        long readVersion = store.get().getVersion();
+        //a notification for A is applied after the refresh was read, but before it is applied
+        store.setOccupancy("A", 7);
+        Map<String, Integer> refresh = new HashMap<>();
+        refresh.put("A", 3);
+        refresh.put("B", 6);
+
+        ParkingStateStore.Snapshot after = store.setOccupancies(refresh, readVersion);
+
+        assertEquals(7, after.getLot("A").getOccupancy());
+        assertEquals(6, after.getLot("B").getOccupancy());
+    }
+
+    @Test
+    public void refreshReadAfterTheLatestUpdateApplies() {
+        ParkingStateStore store = createStore();
+        long staleVersion = store.get().getVersion();
+        ParkingStateStore.Snapshot newer = store.setOccupancy("A", 7);
+        Map<String, Integer> refresh = new HashMap<>();
+        refresh.put("A", 3);
+
+        assertSame(newer, store.setOccupancies(refresh, staleVersion));
+        assertEquals(3, store.setOccupancies(refresh, newer.getVersion()).getLot("A").getOccupancy());
+    }
+}
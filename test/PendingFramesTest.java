@@ -0,0 +1,59 @@
+import models.BatchDiffUpdate;
+import models.DiffUpdate;
+import models.EncodedFrame;
+import models.FullStateUpdate;
+import models.KeepAliveMessage;
+import models.ParkingLot;
+import models.PendingFrames;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class PendingFramesTest {
+
+    @Test
+    public void keepsOnlyNewestFramePerLot() {
+        EncodedFrame a1 = EncodedFrame.json(new DiffUpdate("A", 1, 1));
+        EncodedFrame b2 = EncodedFrame.json(new DiffUpdate("B", 2, 2));
+        EncodedFrame a3 = EncodedFrame.json(new DiffUpdate("A", 3, 3));
+        PendingFrames pending = new PendingFrames(0).add(a1).add(b2).add(a3);
+
+        assertEquals(2, pending.size());
+        assertEquals(Arrays.asList(b2, a3), pending.drain());
+    }
+
+    @Test
+    public void batchIsKeptWhileItIsNewestForSomeLot() {
+        Map<String, Integer> lots = new LinkedHashMap<>();
+        lots.put("A", 1);
+        lots.put("B", 1);
+        EncodedFrame batch = EncodedFrame.json(new BatchDiffUpdate(lots, 1));
+        EncodedFrame a2 = EncodedFrame.json(new DiffUpdate("A", 2, 2));
+        EncodedFrame b3 = EncodedFrame.json(new DiffUpdate("B", 3, 3));
+        PendingFrames pending = new PendingFrames(0).add(batch).add(a2);
+
+        assertEquals(Arrays.asList(batch, a2), pending.drain());
+        assertEquals(Arrays.asList(a2, b3), new PendingFrames(0).add(batch).add(a2).add(b3).drain());
+    }
+
+    @Test
+    public void fullStateReplacesEarlierFramesAndKeepAlivesOnlyFillSilence() {
+        Map<String, ParkingLot> state = new HashMap<>();
+        state.put("A", new ParkingLot("A", 5, 10));
+        EncodedFrame keepAlive = EncodedFrame.json(new KeepAliveMessage());
+        EncodedFrame a1 = EncodedFrame.json(new DiffUpdate("A", 1, 1));
+        EncodedFrame full = EncodedFrame.json(new FullStateUpdate(state, 2, "epoch"));
+        EncodedFrame a3 = EncodedFrame.json(new DiffUpdate("A", 3, 3));
+
+        assertEquals(Collections.singletonList(keepAlive), new PendingFrames(0).add(keepAlive).drain());
+        PendingFrames pending = new PendingFrames(0).add(a1).add(keepAlive).add(full).add(a3);
+        assertEquals(2, pending.size());
+        assertEquals(Arrays.asList(full, a3), pending.drain());
+    }
+}
@@ -0,0 +1,40 @@
+import org.junit.Test;
+import utils.SequencedRingBuffer;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class SequencedRingBufferTest {
+
+    @Test
+    public void returnsItemsAfterSeq() {
+        SequencedRingBuffer<String> buffer = new SequencedRingBuffer<>(4, 0);
+        buffer.add(1, "a");
+        buffer.add(2, "b");
+        buffer.add(3, "c");
+
+        assertEquals(Arrays.asList("b", "c"), buffer.since(1));
+        assertEquals(Arrays.asList("a", "b", "c"), buffer.since(0));
+        assertEquals(Collections.emptyList(), buffer.since(3));
+    }
+
+    @Test
+    public void evictedSeqsAreNotCovered() {
+        SequencedRingBuffer<String> buffer = new SequencedRingBuffer<>(2, 0);
+        buffer.add(1, "a");
+        buffer.add(2, "b");
+        buffer.add(3, "c");
+
+        assertNull(buffer.since(0));
+        assertEquals(Arrays.asList("b", "c"), buffer.since(1));
+    }
+
+    @Test
+    public void seqsBeforeStartAreNotCovered() {
+        SequencedRingBuffer<String> buffer = new SequencedRingBuffer<>(2, 10);
+        assertNull(buffer.since(9));
+        assertEquals(Collections.emptyList(), buffer.since(10));
+    }
+}
@@ -0,0 +1,129 @@
+import models.BatchDiffUpdate;
+import models.DiffUpdate;
+import models.EncodedFrame;
+import models.IncomingSubscription;
+import models.KeepAliveMessage;
+import models.SubscribedLots;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SubscribedLotsTest {
+    private static final List<String> KNOWN_LOTS = Arrays.asList("A", "B", "C");
+
+    @Test
+    public void subscribingWhileGettingEveryLotSwitchesToJustThoseLots() {
+        SubscribedLots subscribed = SubscribedLots.ALL.apply(subscribe("A", "B"), KNOWN_LOTS);
+
+        assertFalse(subscribed.isAll());
+        assertEquals(new HashSet<>(Arrays.asList("A", "B")), subscribed.getLots());
+    }
+
+    @Test
+    public void subscribingAddsToTheSubscribedLots() {
+        SubscribedLots subscribed = SubscribedLots.of(Collections.singletonList("A"), KNOWN_LOTS)
+                .apply(subscribe("C"), KNOWN_LOTS);
+
+        assertEquals(new HashSet<>(Arrays.asList("A", "C")), subscribed.getLots());
+    }
+
+    @Test
+    public void bareSubscribeIsEveryLot() {
+        SubscribedLots subscribed = SubscribedLots.of(Collections.singletonList("A"), KNOWN_LOTS)
+                .apply(new IncomingSubscription(IncomingSubscription.SUBSCRIBE, null), KNOWN_LOTS);
+
+        assertSame(SubscribedLots.ALL, subscribed);
+    }
+
+    @Test
+    public void unsubscribingWhileGettingEveryLotKeepsEveryOtherLot() {
+        SubscribedLots subscribed = SubscribedLots.ALL.apply(unsubscribe("B"), KNOWN_LOTS);
+
+        assertFalse(subscribed.isAll());
+        assertEquals(new HashSet<>(Arrays.asList("A", "C")), subscribed.getLots());
+    }
+
+    @Test
+    public void unsubscribingRemovesFromTheSubscribedLots() {
+        SubscribedLots subscribed = SubscribedLots.of(Arrays.asList("A", "B"), KNOWN_LOTS)
+                .apply(unsubscribe("A", "C"), KNOWN_LOTS);
+
+        assertEquals(Collections.singleton("B"), subscribed.getLots());
+    }
+
+    @Test
+    public void bareUnsubscribeIsNoLot() {
+        SubscribedLots subscribed = SubscribedLots.ALL
+                .apply(new IncomingSubscription(IncomingSubscription.UNSUBSCRIBE, null), KNOWN_LOTS);
+
+        assertFalse(subscribed.isAll());
+        assertTrue(subscribed.getLots().isEmpty());
+        assertFalse(subscribed.contains("A"));
+    }
+
+    @Test
+    public void unknownLotsAreFilteredOut() {
+        assertEquals(Collections.singleton("A"),
+                SubscribedLots.of(Arrays.asList("A", "Z"), KNOWN_LOTS).getLots());
+        assertEquals(Collections.singleton("A"),
+                SubscribedLots.ALL.apply(subscribe("A", "Z"), KNOWN_LOTS).getLots());
+        assertEquals(new HashSet<>(Arrays.asList("A", "C")),
+                SubscribedLots.ALL.apply(unsubscribe("B", "Z"), KNOWN_LOTS).getLots());
+    }
+
+    @Test
+    public void unknownHeaderChangesNothing() {
+        SubscribedLots subscribed = SubscribedLots.of(Collections.singletonList("A"), KNOWN_LOTS);
+
+        assertSame(subscribed, subscribed.apply(new IncomingSubscription("Resubscribe", null), KNOWN_LOTS));
+    }
+
+    @Test
+    public void wantsOnlyDiffsAboutSubscribedLots() {
+        SubscribedLots subscribed = SubscribedLots.of(Collections.singletonList("A"), KNOWN_LOTS);
+
+        assertTrue(subscribed.wants(EncodedFrame.json(new DiffUpdate("A", 1, 1))));
+        assertFalse(subscribed.wants(EncodedFrame.json(new DiffUpdate("B", 1, 2))));
+        assertTrue(SubscribedLots.ALL.wants(EncodedFrame.json(new DiffUpdate("B", 1, 2))));
+    }
+
+    @Test
+    public void wantsBatchesAboutAnySubscribedLot() {
+        SubscribedLots subscribed = SubscribedLots.of(Collections.singletonList("B"), KNOWN_LOTS);
+
+        assertTrue(subscribed.wants(batch(3, "A", "B")));
+        assertFalse(subscribed.wants(batch(4, "A", "C")));
+        assertTrue(SubscribedLots.ALL.wants(batch(4, "A", "C")));
+    }
+
+    @Test
+    public void wantsEveryOtherFrame() {
+        SubscribedLots none = SubscribedLots.ALL
+                .apply(new IncomingSubscription(IncomingSubscription.UNSUBSCRIBE, null), KNOWN_LOTS);
+
+        assertTrue(none.wants(EncodedFrame.json(new KeepAliveMessage())));
+    }
+
+    static IncomingSubscription subscribe(String... lots) {
+        return new IncomingSubscription(IncomingSubscription.SUBSCRIBE, Arrays.asList(lots));
+    }
+
+    static IncomingSubscription unsubscribe(String... lots) {
+        return new IncomingSubscription(IncomingSubscription.UNSUBSCRIBE, Arrays.asList(lots));
+    }
+
+    static EncodedFrame batch(long seq, String... lots) {
+        Map<String, Integer> occupancies = new LinkedHashMap<>();
+        for (String lot : lots) {
+            occupancies.put(lot, 1);
+        }
+        return EncodedFrame.json(new BatchDiffUpdate(occupancies, seq));
+    }
+}
@@ -0,0 +1,109 @@
+import models.DiffUpdate;
+import models.EncodedFrame;
+import models.KeepAliveMessage;
+import models.SubscribedLots;
+import models.SubscriptionIndex;
+import models.WebsocketMessage;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SubscriptionIndexTest {
+    private static final List<String> KNOWN_LOTS = Arrays.asList("A", "B", "C");
+
+    @Test
+    public void newClientsGetEveryLot() {
+        SubscriptionIndex<String> index = new SubscriptionIndex<>();
+        index.add("client");
+
+        assertSame(SubscribedLots.ALL, index.get("client"));
+        assertTrue(index.indexedLots().isEmpty());
+        assertEquals(Collections.singletonList("client"), recipients(index, new DiffUpdate("A", 1, 1)));
+    }
+
+    @Test
+    public void diffsOnlyReachClientsOfTheirLot() {
+        SubscriptionIndex<String> index = new SubscriptionIndex<>();
+        index.add("all");
+        index.add("a");
+        index.add("b");
+        index.update("a", SubscribedLots.of(Collections.singletonList("A"), KNOWN_LOTS));
+        index.update("b", SubscribedLots.of(Collections.singletonList("B"), KNOWN_LOTS));
+
+        assertEquals(new HashSet<>(Arrays.asList("all", "a")),
+                new HashSet<>(recipients(index, new DiffUpdate("A", 1, 1))));
+        assertEquals(Collections.singletonList("all"), recipients(index, new DiffUpdate("C", 1, 2)));
+        assertEquals(3, recipients(index, new KeepAliveMessage()).size());
+    }
+
+    @Test
+    public void batchesReachEachInterestedClientOnce() {
+        SubscriptionIndex<String> index = new SubscriptionIndex<>();
+        index.add("ab");
+        index.add("c");
+        index.update("ab", SubscribedLots.of(Arrays.asList("A", "B"), KNOWN_LOTS));
+        index.update("c", SubscribedLots.of(Collections.singletonList("C"), KNOWN_LOTS));
+
+        List<String> recipients = new ArrayList<>();
+        index.forEachRecipient(SubscribedLotsTest.batch(1, "A", "B"), recipients::add);
+        assertEquals(Collections.singletonList("ab"), recipients);
+    }
+
+    @Test
+    public void unsubscribingRemovesEmptiedLots() {
+        SubscriptionIndex<String> index = new SubscriptionIndex<>();
+        index.add("a");
+        index.add("ab");
+        index.update("a", SubscribedLots.of(Collections.singletonList("A"), KNOWN_LOTS));
+        index.update("ab", SubscribedLots.of(Arrays.asList("A", "B"), KNOWN_LOTS));
+        assertEquals(new HashSet<>(Arrays.asList("A", "B")), index.indexedLots());
+
+        index.update("ab", index.get("ab").apply(SubscribedLotsTest.unsubscribe("B"), KNOWN_LOTS));
+        assertEquals(Collections.singleton("A"), index.indexedLots());
+        assertEquals(new HashSet<>(Arrays.asList("a", "ab")), index.clientsOf("A"));
+
+        index.update("a", index.get("a").apply(SubscribedLotsTest.unsubscribe("A"), KNOWN_LOTS));
+        assertEquals(Collections.singleton("ab"), index.clientsOf("A"));
+
+        index.update("ab", SubscribedLots.ALL);
+        assertTrue(index.indexedLots().isEmpty());
+        assertEquals(Collections.singletonList("ab"), recipients(index, new DiffUpdate("A", 1, 1)));
+    }
+
+    @Test
+    public void closedClientsLeaveNothingBehind() {
+        SubscriptionIndex<String> index = new SubscriptionIndex<>();
+        index.add("all");
+        index.add("ab");
+        index.update("ab", SubscribedLots.of(Arrays.asList("A", "B"), KNOWN_LOTS));
+
+        index.remove("ab");
+        index.remove("all");
+
+        assertEquals(0, index.size());
+        assertTrue(index.indexedLots().isEmpty());
+        assertTrue(index.clientsOf("A").isEmpty());
+        assertTrue(recipients(index, new DiffUpdate("A", 1, 1)).isEmpty());
+    }
+
+    @Test
+    public void updatesForUnknownClientsAreIgnored() {
+        SubscriptionIndex<String> index = new SubscriptionIndex<>();
+
+        assertFalse(index.update("gone", SubscribedLots.of(Collections.singletonList("A"), KNOWN_LOTS)));
+        assertEquals(0, index.size());
+        assertTrue(index.indexedLots().isEmpty());
+    }
+
+    private static List<String> recipients(SubscriptionIndex<String> index, WebsocketMessage message) {
+        List<String> recipients = new ArrayList<>();
+        index.forEachRecipient(EncodedFrame.json(message), recipients::add);
+        return recipients;
+    }
+}